@@ -5,6 +5,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 
 public class Utils {
 	public static final void debug(Object recv, Object... strs) {
@@ -47,6 +48,40 @@ public class Utils {
 	    return -1;
 	}
 
+	/*
+		LEB128: 7 bits per byte, low bits first, at most 5 bytes
+	 */
+	public static final void putVarint(ByteBuffer out, int value) {
+		while((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	public static final int getVarint(ByteBuffer in) {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if(b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/*
+		small negative values (e.g. -1) take a single byte
+	 */
+	public static final void putZigzag(ByteBuffer out, int value) {
+		putVarint(out, (value << 1) ^ (value >> 31));
+	}
+
+	public static final int getZigzag(ByteBuffer in) {
+		int value = getVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
 	public static String readStream(InputStream stream) throws IOException {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
 		StringBuilder out = new StringBuilder();
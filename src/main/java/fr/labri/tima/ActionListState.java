@@ -0,0 +1,63 @@
+package fr.labri.tima;
+
+import java.util.List;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.State;
+
+/**
+ * A state whose callbacks are exactly the callbacks of its actions, in order.
+ * Generated steppers rely on it to call the actions directly. Callbacks iterate by index and allocate nothing.
+ */
+class ActionListState<C> implements State<C> {
+	final String _name;
+	final List<Action<C>> _actions;
+	final int _modifiers;
+
+	ActionListState(String name, List<Action<C>> actions, int modifiers) {
+		_name = name;
+		_actions = actions;
+		_modifiers = modifiers;
+	}
+
+	@Override
+	public String getName() {
+		return _name;
+	}
+
+	@Override
+	public List<Action<C>> getActions() {
+		return _actions;
+	}
+
+	@Override
+	public int getModifier() {
+		return _modifiers;
+	}
+
+	@Override
+	public void preAction(C context) {
+		List<Action<C>> actions = _actions;
+		for (int i = 0, n = actions.size(); i < n; i++)
+			actions.get(i).preAction(context);
+	}
+
+	@Override
+	public void eachAction(C context) {
+		List<Action<C>> actions = _actions;
+		for (int i = 0, n = actions.size(); i < n; i++)
+			actions.get(i).eachAction(context);
+	}
+
+	@Override
+	public void postAction(C context) {
+		List<Action<C>> actions = _actions;
+		for (int i = 0, n = actions.size(); i < n; i++)
+			actions.get(i).postAction(context);
+	}
+
+	@Override
+	public String toString() {
+		return _name;
+	}
+}
@@ -1,5 +1,15 @@
 package fr.labri.tima;
 
+import static fr.labri.Utils.*;
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
 import java.util.*;
 
 import javax.swing.AbstractListModel;
@@ -8,12 +18,17 @@ import javax.swing.JList;
 import fr.labri.tima.ITimedAutomata.ContextProvider;
 import fr.labri.tima.ITimedAutomata.Cursor;
 import fr.labri.tima.ITimedAutomata.Executor;
+import fr.labri.tima.ITimedAutomata.RunReport;
 
 public class BasicExecutor<C> implements Executor<C> {
+	static final int BLOCK = 1024;
+	static final int SNAPSHOT_VERSION = 1;
+
 	final Collection<ITimedAutomata<C>> _automatas;
  	final Cursor<C> _cursors[];
 	final ContextProvider<C> _context;
 	int _alive;
+	PredicateMemo<C> _memo;
 
 	TAViewer _viewer;
 
@@ -27,29 +42,176 @@ public class BasicExecutor<C> implements Executor<C> {
 	@Override
 	public BasicExecutor<C> start() {
 		for (ITimedAutomata<C> automata : _automatas) {
-			_cursors[_alive ++] = automata.start(_context);
+			_cursors[_alive ++] = memoize(automata.start(_context));
 		}
 		if(_viewer != null)
 			_viewer.update();
 		return this;
 	}
 
+	/*
+		Evaluate a shared predicate at most once per tick: predicates must only depend on the context.
+		Only compiled automata bound to global predicate ids share their results, batched feeds are never memoized.
+	 */
+	public BasicExecutor<C> memoize(int predicates) {
+		_memo = new PredicateMemo<>(predicates);
+		for (int i = 0; i < _alive; i ++)
+			memoize(_cursors[i]);
+		return this;
+	}
+
+	private Cursor<C> memoize(Cursor<C> cursor) {
+		if (_memo != null && cursor instanceof CompiledTimedAutomata.CompiledCursor)
+			((CompiledTimedAutomata<C>.CompiledCursor) cursor).memoize(_memo);
+		return cursor;
+	}
+
 	@Override
 	public boolean next() {
+		if (_memo != null)
+			_memo.clear();
 		int alive = _alive;
 		for (int i = 0; i < _alive;) {
 			Cursor<C> cursor = _cursors[i];
 			if (cursor.next(_context)) {
-				_alive --;
-				_cursors[i] = _cursors[alive];
+				_cursors[i] = _cursors[-- _alive];
 			} else
 				i ++;
 		}
-		if (alive != _alive)
+		if (alive != _alive && _viewer != null)
 			_viewer.update();
 		return _alive > 0;
 	}
 
+	/*
+		Events are buffered by blocks, each cursor runs a whole block before the next cursor does.
+		Hence actions of different automata are not interleaved as they would be with next().
+		Run one tick per event, return the counters of the whole batch.
+	 */
+	public RunReport feed(Iterable<C> events) {
+		@SuppressWarnings("unchecked")
+		C[] block = (C[]) new Object[BLOCK];
+		RunReport report = new RunReport();
+		int len = 0;
+		for (C event : events) {
+			block[len ++] = event;
+			if (len == BLOCK) {
+				feed(block, 0, len, report);
+				len = 0;
+			}
+		}
+		return feed(block, 0, len, report);
+	}
+
+	public RunReport feed(C[] events, int off, int len) {
+		return feed(events, off, len, new RunReport());
+	}
+
+	public RunReport feed(C[] events, int off, int len, RunReport report) {
+		int alive = _alive;
+		for (int i = 0; i < _alive;) {
+			if (_cursors[i].run(events, off, len, report)) {
+				_cursors[i] = _cursors[-- _alive];
+			} else
+				i ++;
+		}
+		if (alive != _alive && _viewer != null)
+			_viewer.update();
+		return report;
+	}
+
+	/*
+		upper bound of the size of a snapshot, in bytes
+	 */
+	public long snapshotSize() {
+		return 3 * 5 + _alive * 4L * 5;
+	}
+
+	/*
+		Write the alive cursors, which must be compiled ones, as varints: index of their automaton in the automata collection,
+		current state, remaining timeout and last valid predicate. Contexts and predicate memos are not part of a snapshot.
+	 */
+	public ByteBuffer snapshot(ByteBuffer out) {
+		Map<ITimedAutomata<C>, Integer> ids = new IdentityHashMap<>();
+		int id = 0;
+		for (ITimedAutomata<C> automata : _automatas)
+			ids.putIfAbsent(automata, id ++);
+
+		putVarint(out, SNAPSHOT_VERSION);
+		putVarint(out, _automatas.size());
+		putVarint(out, _alive);
+		for (int i = 0; i < _alive; i ++) {
+			CompiledTimedAutomata<C>.CompiledCursor cursor = compiled(_cursors[i]);
+			putVarint(out, ids.get(cursor.getAutomata()));
+			putVarint(out, cursor._current);
+			putZigzag(out, cursor._currentTimeout);
+			putVarint(out, cursor._lastPredicate + 1);
+		}
+		return out;
+	}
+
+	public void snapshot(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+			MappedByteBuffer out = channel.map(MapMode.READ_WRITE, 0, snapshotSize());
+			snapshot(out);
+			out.force();
+			channel.truncate(out.position());
+		}
+	}
+
+	/*
+		Replace the cursors by the ones of a snapshot taken on the same automata collection. No action is called.
+		A corrupt or truncated snapshot fails with an IllegalArgumentException and leaves the cursors untouched.
+	 */
+	public BasicExecutor<C> restore(ByteBuffer in) {
+		Cursor<C>[] cursors;
+		try {
+			cursors = readCursors(in);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated snapshot", e);
+		}
+		System.arraycopy(cursors, 0, _cursors, 0, cursors.length);
+		_alive = cursors.length;
+		if (_viewer != null)
+			_viewer.update();
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Cursor<C>[] readCursors(ByteBuffer in) {
+		if (getVarint(in) != SNAPSHOT_VERSION)
+			throw new IllegalArgumentException("Unsupported snapshot version");
+		if (getVarint(in) != _automatas.size())
+			throw new IllegalArgumentException("Snapshot was taken on another automata collection");
+		int alive = getVarint(in);
+		if (alive < 0 || alive > _cursors.length)
+			throw new IllegalArgumentException("Snapshot has too many cursors: " + alive);
+		ITimedAutomata<C>[] automatas = _automatas.toArray(new ITimedAutomata[_automatas.size()]);
+
+		Cursor<C>[] cursors = new Cursor[alive];
+		for (int i = 0; i < alive; i ++) {
+			int automata = getVarint(in);
+			if (automata < 0 || automata >= automatas.length)
+				throw new IllegalArgumentException("Snapshot refers to no automaton: " + automata);
+			CompiledTimedAutomata<C>.CompiledCursor cursor = compiled(automatas[automata].start(_context));
+			cursor.restore(getVarint(in), getZigzag(in), getVarint(in) - 1);
+			cursors[i] = memoize(cursor);
+		}
+		return cursors;
+	}
+
+	public BasicExecutor<C> restore(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, READ)) {
+			return restore(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private CompiledTimedAutomata<C>.CompiledCursor compiled(Cursor<C> cursor) {
+		if (!(cursor instanceof CompiledTimedAutomata.CompiledCursor))
+			throw new IllegalArgumentException("Snapshots require compiled automata: " + cursor.getAutomata().getClass().getName());
+		return (CompiledTimedAutomata<C>.CompiledCursor) cursor;
+	}
+
 	@Override
 	public Collection<Cursor<C>> getCursors() {
 		return Collections.unmodifiableCollection(Arrays.asList(_cursors)); // should trim to alive
@@ -0,0 +1,269 @@
+package fr.labri.tima;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.Predicate;
+import fr.labri.tima.ITimedAutomata.State;
+
+/**
+ * Generates a {@link Stepper} class per automaton.
+ *
+ * For each state, <code>select</code> tests the guards of the state one after the other, and the callbacks of a state
+ * made of actions ({@link ActionListState}) call these actions directly. Other states are called through their
+ * {@link State} interface. States are grouped in chunk methods small enough to be JIT compiled
+ * (HotSpot does not compile methods over 8000 bytes), the top level methods dispatch on the chunk of the state.
+ * Each generated class has its own class loader, so it can be collected with its automaton.
+ */
+public class BytecodeCompiler {
+	static final int CHUNK_BUDGET = 7000;
+	static final int MAX_CHUNKS = 1 << 12;
+	static final int TRANSITION_SIZE = 24;
+	static final int ACTION_SIZE = 16;
+	static final int STATE_SIZE = 32;
+
+	static final String STEPPER = Type.getInternalName(Stepper.class);
+	static final String PREDICATE = Type.getInternalName(Predicate.class);
+	static final String ACTION = Type.getInternalName(Action.class);
+	static final String STATE = Type.getInternalName(State.class);
+	static final String OBJECT = "java/lang/Object";
+	static final String CALLBACK = "(ILjava/lang/Object;)V";
+	static final String SELECT = "(ILjava/lang/Object;)I";
+	static final String[] CALLBACKS = { "preAction", "eachAction", "postAction" };
+
+	static final AtomicInteger _classes = new AtomicInteger();
+
+	/*
+		return the automaton running on a generated stepper, or its table form if a state is too large to be generated
+	 */
+	public static <C> CompiledTimedAutomata<C> compile(ITimedAutomata<C> automata) {
+		CompiledTimedAutomata<C> tables = (CompiledTimedAutomata<C>) automata.compile();
+		if(tables instanceof BytecodeTimedAutomata)
+			return tables;
+		Stepper<C> stepper = new BytecodeCompiler().generate(tables);
+		return stepper == null ? tables : new BytecodeTimedAutomata<>(tables, stepper);
+	}
+
+	final List<Action<?>> _actions = new ArrayList<>();
+	int[] _firstAction;
+	int[] _chunks;
+	int[] _chunkStart;
+	int _nchunks;
+
+	@SuppressWarnings("unchecked")
+	<C> Stepper<C> generate(CompiledTimedAutomata<C> automata) {
+		int len = automata._states.length;
+		_firstAction = new int[len + 1];
+		for(int state = 0; state < len; state ++) {
+			_firstAction[state] = _actions.size();
+			State<C> s = automata._states[state];
+			if(s instanceof ActionListState)
+				_actions.addAll(s.getActions());
+		}
+		_firstAction[len] = _actions.size();
+
+		if(!split(automata))
+			return null;
+
+		String name = STEPPER + "$" + _classes.incrementAndGet();
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				return OBJECT;
+			}
+		};
+		cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null, STEPPER, null);
+		constructor(cw);
+		dispatch(cw, name, "select", SELECT);
+		for(String callback: CALLBACKS)
+			dispatch(cw, name, callback, CALLBACK);
+		for(int chunk = 0; chunk < _nchunks; chunk ++) {
+			select(cw, automata, chunk);
+			for(String callback: CALLBACKS)
+				callback(cw, automata, callback, chunk);
+		}
+		cw.visitEnd();
+
+		Class<?> type = new Loader(Stepper.class.getClassLoader()).define(name.replace('/', '.'), cw.toByteArray());
+		try {
+			return (Stepper<C>) type.getConstructor(Predicate[].class, Action[].class, State[].class, int[].class)
+					.newInstance(automata._predicates, _actions.toArray(new Action[_actions.size()]), automata._states, _chunks);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("Cannot instantiate generated stepper", e);
+		}
+	}
+
+	/*
+		greedily group consecutive states under the chunk budget, fail if a single state exceeds it
+	 */
+	private boolean split(CompiledTimedAutomata<?> automata) {
+		int len = automata._states.length;
+		_chunks = new int[len];
+		int[] starts = new int[len + 1];
+		int chunk = 0, size = 0;
+		for(int state = 0; state < len; state ++) {
+			int cost = STATE_SIZE + Math.max(automata.transitions(state) * TRANSITION_SIZE, (_firstAction[state + 1] - _firstAction[state]) * ACTION_SIZE);
+			if(cost > CHUNK_BUDGET)
+				return false;
+			if(size + cost > CHUNK_BUDGET) {
+				starts[++ chunk] = state;
+				size = 0;
+			}
+			size += cost;
+			_chunks[state] = chunk;
+		}
+		_nchunks = len == 0 ? 0 : chunk + 1;
+		starts[_nchunks] = len;
+		_chunkStart = starts;
+		return _nchunks <= MAX_CHUNKS;
+	}
+
+	private void constructor(ClassWriter cw) {
+		String desc = "([L" + PREDICATE + ";[L" + ACTION + ";[L" + STATE + ";[I)V";
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", desc, null, null);
+		mv.visitCode();
+		for(int i = 0; i <= 4; i ++)
+			mv.visitVarInsn(ALOAD, i);
+		mv.visitMethodInsn(INVOKESPECIAL, STEPPER, "<init>", desc, false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/*
+		switch on _chunks[state] to the chunk method
+	 */
+	private void dispatch(ClassWriter cw, String owner, String method, String desc) {
+		boolean select = SELECT.equals(desc);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, method, desc, null, null);
+		mv.visitCode();
+		if(_nchunks == 0) {
+			if(select)
+				mv.visitInsn(ICONST_M1);
+			mv.visitInsn(select ? IRETURN : RETURN);
+		} else {
+			Label[] labels = new Label[_nchunks];
+			for(int i = 0; i < _nchunks; i ++)
+				labels[i] = new Label();
+			if(_nchunks > 1) {
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitFieldInsn(GETFIELD, STEPPER, "_chunks", "[I");
+				mv.visitVarInsn(ILOAD, 1);
+				mv.visitInsn(IALOAD);
+				mv.visitTableSwitchInsn(0, _nchunks - 1, labels[0], labels);
+			}
+			for(int i = 0; i < _nchunks; i ++) {
+				mv.visitLabel(labels[i]);
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitVarInsn(ILOAD, 1);
+				mv.visitVarInsn(ALOAD, 2);
+				mv.visitMethodInsn(INVOKESPECIAL, owner, method + "$" + i, desc, false);
+				mv.visitInsn(select ? IRETURN : RETURN);
+			}
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private void select(ClassWriter cw, CompiledTimedAutomata<?> automata, int chunk) {
+		MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_FINAL, "select$" + chunk, SELECT, null, null);
+		mv.visitCode();
+		Label none = new Label();
+		Label[] states = stateSwitch(mv, chunk, none);
+		for(int state = _chunkStart[chunk]; state < _chunkStart[chunk + 1]; state ++) {
+			mv.visitLabel(states[state - _chunkStart[chunk]]);
+			for(int i = 0; i < automata.transitions(state); i ++) {
+				Label next = new Label();
+				element(mv, "_predicates", PREDICATE, automata.predicate(state, i));
+				mv.visitVarInsn(ALOAD, 2);
+				mv.visitMethodInsn(INVOKEINTERFACE, PREDICATE, "isValid", "(Ljava/lang/Object;)Z", true);
+				mv.visitJumpInsn(IFEQ, next);
+				push(mv, i);
+				mv.visitInsn(IRETURN);
+				mv.visitLabel(next);
+			}
+			mv.visitJumpInsn(GOTO, none);
+		}
+		mv.visitLabel(none);
+		mv.visitInsn(ICONST_M1);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private void callback(ClassWriter cw, CompiledTimedAutomata<?> automata, String callback, int chunk) {
+		MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_FINAL, callback + "$" + chunk, CALLBACK, null, null);
+		mv.visitCode();
+		Label end = new Label();
+		Label[] states = stateSwitch(mv, chunk, end);
+		for(int state = _chunkStart[chunk]; state < _chunkStart[chunk + 1]; state ++) {
+			mv.visitLabel(states[state - _chunkStart[chunk]]);
+			if(automata._states[state] instanceof ActionListState) {
+				for(int a = _firstAction[state]; a < _firstAction[state + 1]; a ++) {
+					element(mv, "_actions", ACTION, a);
+					mv.visitVarInsn(ALOAD, 2);
+					mv.visitMethodInsn(INVOKEINTERFACE, ACTION, callback, "(Ljava/lang/Object;)V", true);
+				}
+			} else {
+				element(mv, "_states", STATE, state);
+				mv.visitVarInsn(ALOAD, 2);
+				mv.visitMethodInsn(INVOKEINTERFACE, STATE, callback, "(Ljava/lang/Object;)V", true);
+			}
+			mv.visitJumpInsn(GOTO, end);
+		}
+		mv.visitLabel(end);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private Label[] stateSwitch(MethodVisitor mv, int chunk, Label dflt) {
+		int lo = _chunkStart[chunk], hi = _chunkStart[chunk + 1];
+		Label[] labels = new Label[hi - lo];
+		for(int i = 0; i < labels.length; i ++)
+			labels[i] = new Label();
+		mv.visitVarInsn(ILOAD, 1);
+		mv.visitTableSwitchInsn(lo, hi - 1, dflt, labels);
+		return labels;
+	}
+
+	/*
+		push this.field[index]
+	 */
+	private static void element(MethodVisitor mv, String field, String type, int index) {
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, STEPPER, field, "[L" + type + ";");
+		push(mv, index);
+		mv.visitInsn(AALOAD);
+	}
+
+	private static void push(MethodVisitor mv, int value) {
+		if(value >= -1 && value <= 5)
+			mv.visitInsn(ICONST_0 + value);
+		else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			mv.visitIntInsn(BIPUSH, value);
+		else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			mv.visitIntInsn(SIPUSH, value);
+		else
+			mv.visitLdcInsn(value);
+	}
+
+	static final class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] code) {
+			return defineClass(name, code, 0, code.length);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package fr.labri.tima;
+
+/**
+ * A compiled automaton whose guards and callbacks run through a generated {@link Stepper}.
+ *
+ * The transition tables are shared with the table automaton, only the dispatch differs.
+ * The stepper evaluates the guards itself: the guard index and the predicate memo are not used.
+ */
+public class BytecodeTimedAutomata<C> extends CompiledTimedAutomata<C> {
+	final Stepper<C> _stepper;
+
+	BytecodeTimedAutomata(CompiledTimedAutomata<C> tables, Stepper<C> stepper) {
+		super(tables);
+		_stepper = stepper;
+	}
+
+	@Override
+	int select(int state, C context, PredicateMemo<C> memo) {
+		return _stepper.select(state, context);
+	}
+
+	@Override
+	void preAction(int state, C context) {
+		_stepper.preAction(state, context);
+	}
+
+	@Override
+	void eachAction(int state, C context) {
+		_stepper.eachAction(state, context);
+	}
+
+	@Override
+	void postAction(int state, C context) {
+		_stepper.postAction(state, context);
+	}
+}
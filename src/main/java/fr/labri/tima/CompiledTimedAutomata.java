@@ -1,5 +1,11 @@
 package fr.labri.tima;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
 import fr.labri.Utils;
 
 public class CompiledTimedAutomata<C> implements ITimedAutomata<C> {
@@ -8,92 +14,317 @@ public class CompiledTimedAutomata<C> implements ITimedAutomata<C> {
 	
 	int _initial;
 	
-	final int[][] _transitionsPredicates;
-	final int[][] _transitionsTarget;
+	/*
+		Transitions in compressed rows: those of state s are the pairs (predicate, target) of _edges
+		from index 2 * _offsets[s] to 2 * _offsets[s + 1].
+	 */
+	final int[] _offsets;
+	final int[] _edges;
 	final int[] _timeouts;
 	final int[] _timeoutsTarget;
+
+	String _name;
+	GuardIndex _index;
+	int[] _predicateIds;
 	
-	public CompiledTimedAutomata(State<C>[] states, Predicate<C>[] predicates, int initial, int[][] transitionsPredicates, int[] timeouts, int[][] transitionsTarget, int[] timeoutsTarget) {
+	CompiledTimedAutomata(State<C>[] states, Predicate<C>[] predicates, int initial, int[] offsets, int[] edges, int[] timeouts, int[] timeoutsTarget) {
 		_states = states;
 		_predicates = predicates;
-		_transitionsPredicates = transitionsPredicates;
+		_offsets = offsets;
+		_edges = edges;
 		_timeouts = timeouts;
-		_transitionsTarget = transitionsTarget;
 		_timeoutsTarget = timeoutsTarget;
 		
 		_initial = initial;
 		
 		int l = states.length ;
-		if(l != transitionsPredicates.length || l != timeouts.length || l != transitionsTarget.length || l != timeoutsTarget.length)
+		if(l + 1 != offsets.length || 2 * offsets[l] != edges.length || l != timeouts.length || l != timeoutsTarget.length)
+			throw new RuntimeException("Automaton is not well formed !");
+	}
+
+	public CompiledTimedAutomata(State<C>[] states, Predicate<C>[] predicates, int initial, int[][] transitionsPredicates, int[] timeouts, int[][] transitionsTarget, int[] timeoutsTarget) {
+		this(states, predicates, initial, offsets(states.length, transitionsPredicates), edges(transitionsPredicates, transitionsTarget), timeouts, timeoutsTarget);
+		if(states.length != transitionsTarget.length)
 			throw new RuntimeException("Automaton is not well formed !");
 	}
 	
+	CompiledTimedAutomata(CompiledTimedAutomata<C> tables) {
+		this(tables._states, tables._predicates, tables._initial, tables._offsets, tables._edges, tables._timeouts, tables._timeoutsTarget);
+		_name = tables._name;
+	}
+
 	public CompiledTimedAutomata(State<C>[] states, Predicate<C>[] predicates, Action<C> initial, int[][] transitionsPredicates, int[] timeouts, int[][] transitionsTarget, int[] timeoutsTarget) {
 		this(states, predicates, Utils.indexOf(initial, states), transitionsPredicates, timeouts, transitionsTarget, timeoutsTarget);
 	}
+
+	/*
+		start of the transitions of each state from the lengths of the rows, null rows have no transition
+	 */
+	static int[] offsets(int states, int[][] rows) {
+		if(rows.length != states)
+			throw new RuntimeException("Automaton is not well formed !");
+		int[] offsets = new int[states + 1];
+		for(int state = 0; state < states; state ++)
+			offsets[state + 1] = offsets[state] + (rows[state] == null ? 0 : rows[state].length);
+		return offsets;
+	}
+
+	static int[] edges(int[][] predicates, int[][] targets) {
+		int size = 0;
+		for(int[] row: predicates)
+			size += row == null ? 0 : row.length;
+		int[] edges = new int[2 * size];
+		int e = 0;
+		for(int state = 0; state < predicates.length; state ++)
+			for(int i = 0; predicates[state] != null && i < predicates[state].length; i ++) {
+				edges[e ++] = predicates[state][i];
+				edges[e ++] = targets[state][i];
+			}
+		return edges;
+	}
 	
 	@Override
 	public Cursor<C> start(final ContextProvider<C> context) {
-		return new Cursor<C>() {
-			int _current = _initial;
-			int _currentTimeout = _timeouts[_initial];
-            int _lastPredicate;
-            int _lastState;
-
-
-			@Override
-			final public boolean next(ContextProvider<C> provider) {
-				boolean urgent = false, terminal = false; 
-				do {
-					int current = _current;
-					int target = -1;
-					C ctx = context.getContext();
-
-					if(_currentTimeout > 0 && -- _currentTimeout == 0) 
-						target = _timeoutsTarget[current];
-					else {
-						int[] trans = _transitionsPredicates[current];
-						int len = trans.length;
-						for(int i = 0; i < len; i ++)
-							if(_predicates[trans[i]].isValid(ctx)) {
-                                _lastPredicate = i;
-                                _lastState = current;
-								target = _transitionsTarget[current][i];
-								break;
-							}
-					}
-					if(target == -1) {
-						_states[current].eachAction(ctx);
-					} else {
-						State<C> state = setState(target, provider, ctx);
-						urgent = (state.getModifier() & URGENT) > 0;
-						terminal = (state.getModifier() & TERMINATE) > 0;
-					}
-				} while(urgent);
-				return terminal;
-			}
+		return new CompiledCursor();
+	}
+
+	/*
+		Index the guards of each state by the key of their IndexablePredicate.
+		A guard whose key differs from discriminator(context) is then skipped without being evaluated.
+	 */
+	public CompiledTimedAutomata<C> index(Function<? super C, ?> discriminator) {
+		_index = discriminator == null ? null : new GuardIndex(discriminator);
+		return this;
+	}
+
+	/*
+		Give each predicate its global id (e.g. TimedAutomataFactory::getPredicateId), so that its result can be shared
+		through a PredicateMemo with the other automata using the same predicate instance.
+	 */
+	public CompiledTimedAutomata<C> bindPredicates(ToIntFunction<Predicate<C>> ids) {
+		int[] predicateIds = new int[_predicates.length];
+		for(int i = 0; i < predicateIds.length; i ++)
+			if((predicateIds[i] = ids.applyAsInt(_predicates[i])) < 0)
+				throw new RuntimeException("Predicate has no global id: " + _predicates[i]);
+		_predicateIds = predicateIds;
+		return this;
+	}
+
+	final int select(int state, C context) {
+		return select(state, context, null);
+	}
+
+	/*
+		return the index of the first valid transition of state, -1 if none
+	 */
+	int select(int state, C context, PredicateMemo<C> memo) {
+		if(_index != null)
+			return _index.select(state, context, memo);
+		int[] edges = _edges;
+		int first = _offsets[state], end = _offsets[state + 1];
+		for(int i = first; i < end; i ++)
+			if(isValid(edges[i << 1], context, memo))
+				return i - first;
+		return -1;
+	}
+
+	void preAction(int state, C context) {
+		_states[state].preAction(context);
+	}
+
+	void eachAction(int state, C context) {
+		_states[state].eachAction(context);
+	}
+
+	void postAction(int state, C context) {
+		_states[state].postAction(context);
+	}
+
+	final boolean isValid(int predicate, C context, PredicateMemo<C> memo) {
+		Predicate<C> pred = _predicates[predicate];
+		return memo == null ? pred.isValid(context) : memo.isValid(_predicateIds[predicate], pred, context);
+	}
+
+	final int transitions(int state) {
+		return _offsets[state + 1] - _offsets[state];
+	}
 
-            @Override
-            public Predicate<C> getLastValidPredicate() {
-                return _predicates[_transitionsPredicates[_lastState][_lastPredicate]];
-            }
-
-            final private State<C> setState(int target, ContextProvider<C> provider, C context) {
-				_states[_current].postAction(context);
-				_current = target;
-				_currentTimeout = _timeouts[target];
-				State<C> newState = _states[target];
-				newState.preAction(context);
-				return newState;
+	final int predicate(int state, int transition) {
+		return _edges[(_offsets[state] + transition) << 1];
+	}
+
+	final int target(int state, int transition) {
+		return _edges[((_offsets[state] + transition) << 1) + 1];
+	}
+
+	final class GuardIndex {
+		final Function<? super C, ?> _discriminator;
+		final Map<Object, int[]>[] _byKey;
+		final int[][] _others;
+
+		@SuppressWarnings("unchecked")
+		GuardIndex(Function<? super C, ?> discriminator) {
+			_discriminator = discriminator;
+			int len = _states.length;
+			_byKey = new Map[len];
+			_others = new int[len][];
+			for(int state = 0; state < len; state ++) {
+				int n = transitions(state);
+				Map<Object, int[]> byKey = new HashMap<>();
+				int[] others = new int[n];
+				int nothers = 0;
+				for(int i = 0; i < n; i ++) {
+					Predicate<C> pred = _predicates[predicate(state, i)];
+					if(pred instanceof IndexablePredicate) {
+						Object key = ((IndexablePredicate<C>) pred).getKey();
+						int[] trans = byKey.get(key);
+						trans = trans == null ? new int[1] : Arrays.copyOf(trans, trans.length + 1);
+						trans[trans.length - 1] = i;
+						byKey.put(key, trans);
+					} else
+						others[nothers ++] = i;
+				}
+				_byKey[state] = byKey.isEmpty() ? null : byKey;
+				_others[state] = Arrays.copyOf(others, nothers);
 			}
+		}
 
-			@Override
-			public ITimedAutomata<C> getAutomata() {
-				return CompiledTimedAutomata.this;
+		/*
+			merge the transitions matching the key with the non indexable ones, in their original order
+		 */
+		int select(int state, C context, PredicateMemo<C> memo) {
+			Map<Object, int[]> byKey = _byKey[state];
+			int[] keyed = byKey == null ? null : byKey.get(_discriminator.apply(context));
+			int[] others = _others[state];
+			int k = 0, o = 0;
+			int nk = keyed == null ? 0 : keyed.length, no = others.length;
+			int first = _offsets[state];
+			while(k < nk || o < no) {
+				int i = (o == no || (k < nk && keyed[k] < others[o])) ? keyed[k ++] : others[o ++];
+				if(isValid(_edges[(first + i) << 1], context, memo))
+					return i;
 			}
-		};
+			return -1;
+		}
+	}
+
+	final class CompiledCursor implements Cursor<C> {
+		int _current = _initial;
+		int _currentTimeout = _timeouts[_initial];
+		int _lastPredicate = -1;
+		long _transitions;
+		PredicateMemo<C> _memo;
+
+		@Override
+		final public boolean next(ContextProvider<C> provider) {
+			return step(provider.getContext(), _memo);
+		}
+
+		/*
+			share the predicate results of the current tick, ignored if predicates are not bound to global ids
+		 */
+		final void memoize(PredicateMemo<C> memo) {
+			_memo = _predicateIds == null ? null : memo;
+		}
+
+		/*
+			step sharing the results of memo instead of the memo of this cursor, for executors keeping a memo per worker
+		 */
+		final boolean next(ContextProvider<C> provider, PredicateMemo<C> memo) {
+			return step(provider.getContext(), _predicateIds == null ? null : memo);
+		}
+
+		@Override
+		public boolean run(C[] events, int off, int len, RunReport report) {
+			long transitions = _transitions;
+			int end = off + len, i = off;
+			boolean terminal = false;
+			while(i < end && !terminal)
+				terminal = step(events[i ++], null);
+			report.add(i - off, _transitions - transitions, terminal);
+			return terminal;
+		}
+
+		final boolean step(C ctx, PredicateMemo<C> memo) {
+			boolean urgent, terminal = false;
+			do {
+				int current = _current;
+				int target = -1;
+				urgent = false;
+
+				if(_currentTimeout > 0 && -- _currentTimeout == 0)
+					target = _timeoutsTarget[current];
+				else {
+					int i = select(current, ctx, memo);
+					if(i != -1) {
+						_lastPredicate = predicate(current, i);
+						target = target(current, i);
+					}
+				}
+				if(target == -1) {
+					eachAction(current, ctx);
+				} else {
+					int modifiers = setState(target, ctx);
+					urgent = (modifiers & URGENT) > 0;
+					terminal = (modifiers & TERMINATE) > 0;
+				}
+			} while(urgent);
+			return terminal;
+		}
+
+		/*
+			number of ticks before the timeout of a state without guards, 0 if the cursor has something to evaluate
+		 */
+		final int idleTimeout() {
+			return _currentTimeout > 1 && transitions(_current) == 0 ? _currentTimeout : 0;
+		}
+
+		/*
+			the next step fires the timeout
+		 */
+		final void skipToTimeout() {
+			_currentTimeout = 1;
+		}
+
+		@Override
+		public Predicate<C> getLastValidPredicate() {
+			return _lastPredicate == -1 ? null : _predicates[_lastPredicate];
+		}
+
+		/*
+			resume where a snapshot of a cursor of the same automaton left off, no action is called
+		 */
+		final void restore(int state, int timeout, int lastPredicate) {
+			if(state < 0 || state >= _states.length || lastPredicate < -1 || lastPredicate >= _predicates.length)
+				throw new IllegalArgumentException("Cursor does not fit the automaton: state " + state + ", predicate " + lastPredicate);
+			_current = state;
+			_currentTimeout = timeout;
+			_lastPredicate = lastPredicate;
+		}
+
+		/*
+			return the modifiers of the new state
+		 */
+		final private int setState(int target, C context) {
+			_transitions ++;
+			postAction(_current, context);
+			_current = target;
+			_currentTimeout = _timeouts[target];
+			preAction(target, context);
+			return _states[target].getModifier();
+		}
+
+		@Override
+		public ITimedAutomata<C> getAutomata() {
+			return CompiledTimedAutomata.this;
+		}
 	}
 	
+	@Override
+	public String getName() {
+		return _name;
+	}
+
 	@Override
 	final public State<C> getInitialState() {
 		return _states[_initial];
@@ -112,15 +343,12 @@ public class CompiledTimedAutomata<C> implements ITimedAutomata<C> {
 	@Override
 	public State<C>[] getFollowers(State<C> src) {
 		int id = Utils.indexOf(src, _states);
-		int[] line = _transitionsTarget[id];
-		int l = line.length;
+		int l = transitions(id);
 		int size = ((_timeoutsTarget[id] == -1) ? 0 : 1) + l;
 		@SuppressWarnings("unchecked")
 		State<C>[] states = new State[size];
-		for(int i = 0; i < l; i++) {
-			int t = line[i];
-			states[i] = _states[t];
-		}
+		for(int i = 0; i < l; i++)
+			states[i] = _states[target(id, i)];
 		
 		if(l != size)
 			states[l] = _states[_timeoutsTarget[id]];
@@ -153,10 +381,9 @@ public class CompiledTimedAutomata<C> implements ITimedAutomata<C> {
 	public Predicate<C> getPredicate(State<C> src, State<C> dst) {
 		int idSrc = Utils.indexOf(src, _states);
 		int idDst = Utils.indexOf(dst, _states);
-		int[] line = _transitionsTarget[idSrc];
-		for(int i = 0; i < line.length; i ++)
-			if(line[i] == idDst)
-				return _predicates[_transitionsPredicates[idSrc][i]];
+		for(int i = 0; i < transitions(idSrc); i ++)
+			if(target(idSrc, i) == idDst)
+				return _predicates[predicate(idSrc, i)];
 		
 		return null;
 	}
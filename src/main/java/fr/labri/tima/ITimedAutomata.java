@@ -8,6 +8,11 @@ public interface ITimedAutomata<C> {
 	int URGENT = 1 << 1;
 	int TERMINATE = 1 << 2;
 
+	/*
+		name of the automaton in its description, null if it has none
+	 */
+	String getName();
+
 	State<C> getInitialState();
 	void setInitialState(State<C> initial);
 	State<C>[] getStates();
@@ -28,6 +33,13 @@ public interface ITimedAutomata<C> {
 		boolean isValid(C context);
 		String getType();
 	}
+
+	/*
+		a predicate which can only be valid for contexts whose discriminator equals getKey()
+	 */
+	interface IndexablePredicate<C> extends Predicate<C> {
+		Object getKey();
+	}
 	
 	interface Action<C> {
 		void preAction(C context);
@@ -64,6 +76,12 @@ public interface ITimedAutomata<C> {
 		*/
 		boolean next(ContextProvider<C> provider);
 
+		/*
+			step once per event of events[off .. off+len[, stop on a terminal state
+			return true if this cursor is terminated
+		*/
+		boolean run(C[] events, int off, int len, RunReport report);
+
 		Predicate<C> getLastValidPredicate();
 		ITimedAutomata<C> getAutomata();
 	}
@@ -71,6 +89,29 @@ public interface ITimedAutomata<C> {
 	interface ContextProvider<C> {
 		C getContext();
 	}
+
+	class RunReport {
+		public long steps;
+		public long transitions;
+		public int terminated;
+
+		public RunReport add(int steps, long transitions, boolean terminated) {
+			this.steps += steps;
+			this.transitions += transitions;
+			if(terminated)
+				this.terminated ++;
+			return this;
+		}
+
+		public RunReport reset() {
+			steps = transitions = terminated = 0;
+			return this;
+		}
+
+		public String toString() {
+			return new StringBuilder("{steps: ").append(steps).append(", transitions: ").append(transitions).append(", terminated: ").append(terminated).append("}").toString();
+		}
+	}
 	
 	class ActionAdapter<C> implements Action<C> {
 		public String getType() {
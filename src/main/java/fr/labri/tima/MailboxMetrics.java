@@ -0,0 +1,203 @@
+package fr.labri.tima;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mailbox instrumentation: traffic, depth, messages scanned per selective receive and age of the messages when consumed.
+ *
+ * Mailboxes only report to their {@link Sink} when the JVM runs with -Dtima.metrics=true. Otherwise {@link #ENABLED}
+ * is a false constant and the JIT drops the instrumentation.
+ */
+public class MailboxMetrics {
+	public static final boolean ENABLED = Boolean.getBoolean("tima.metrics");
+
+	public interface Sink {
+		/*
+			a message has been queued, depth is the size of the mailbox afterwards
+		 */
+		void received(int depth);
+
+		/*
+			a message has been refused by a full mailbox
+		 */
+		void dropped();
+
+		/*
+			a queued message has been discarded to make room
+		 */
+		void evicted();
+
+		/*
+			a message has been selected after looking at scanned messages, it had been waiting for age nanoseconds
+		 */
+		void consumed(int depth, int scanned, long age);
+
+		/*
+			no message matched after looking at scanned messages
+		 */
+		void missed(int scanned);
+	}
+
+	public static final Sink NONE = new Sink() {
+		@Override
+		public void received(int depth) {
+		}
+
+		@Override
+		public void dropped() {
+		}
+
+		@Override
+		public void evicted() {
+		}
+
+		@Override
+		public void consumed(int depth, int scanned, long age) {
+		}
+
+		@Override
+		public void missed(int scanned) {
+		}
+	};
+
+	/**
+	 * Sink keeping counters, the maximum depth and histograms of the scans and of the ages, shareable between mailboxes.
+	 */
+	public static class Counters implements Sink {
+		final LongAdder _received = new LongAdder();
+		final LongAdder _dropped = new LongAdder();
+		final LongAdder _evicted = new LongAdder();
+		final LongAdder _consumed = new LongAdder();
+		final LongAdder _missed = new LongAdder();
+		final AtomicLong _maxDepth = new AtomicLong();
+		final Histogram _scanned = new Histogram();
+		final Histogram _age = new Histogram();
+
+		@Override
+		public void received(int depth) {
+			_received.increment();
+			if(depth > _maxDepth.get())
+				_maxDepth.accumulateAndGet(depth, Math::max);
+		}
+
+		@Override
+		public void dropped() {
+			_dropped.increment();
+		}
+
+		@Override
+		public void evicted() {
+			_evicted.increment();
+		}
+
+		@Override
+		public void consumed(int depth, int scanned, long age) {
+			_consumed.increment();
+			_scanned.record(scanned);
+			_age.record(age);
+		}
+
+		@Override
+		public void missed(int scanned) {
+			_missed.increment();
+			_scanned.record(scanned);
+		}
+
+		public long getReceived() {
+			return _received.sum();
+		}
+
+		public long getDropped() {
+			return _dropped.sum();
+		}
+
+		public long getConsumed() {
+			return _consumed.sum();
+		}
+
+		/*
+			messages still queued in the mailboxes reporting to this sink
+		 */
+		public long getDepth() {
+			return _received.sum() - _consumed.sum() - _evicted.sum();
+		}
+
+		public long getMaxDepth() {
+			return _maxDepth.get();
+		}
+
+		/*
+			messages looked at by each selective receive, successful or not
+		 */
+		public Histogram getScanned() {
+			return _scanned;
+		}
+
+		/*
+			time spent in the mailbox by consumed messages, in nanoseconds
+		 */
+		public Histogram getAge() {
+			return _age;
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder("received=").append(getReceived()).append(" dropped=").append(getDropped())
+					.append(" consumed=").append(getConsumed()).append(" depth=").append(getDepth()).append("/").append(getMaxDepth())
+					.append(" scanned[p50=").append(_scanned.percentile(50)).append(" p99=").append(_scanned.percentile(99))
+					.append("] age[p50=").append(_age.percentile(50)).append(" p99=").append(_age.percentile(99)).append("]").toString();
+		}
+	}
+
+	/**
+	 * Log-linear histogram of non negative values: 2^SUB linear buckets per power of two, i.e. a relative error under 2^-SUB.
+	 */
+	public static class Histogram {
+		static final int SUB = 4;
+		static final int LINEAR = 1 << SUB;
+
+		final AtomicLongArray _counts = new AtomicLongArray((65 - SUB) * LINEAR);
+
+		public void record(long value) {
+			_counts.incrementAndGet(index(Math.max(value, 0)));
+		}
+
+		public long count() {
+			long count = 0;
+			for(int i = 0; i < _counts.length(); i ++)
+				count += _counts.get(i);
+			return count;
+		}
+
+		/*
+			upper bound of the bucket holding the given percentile, 0 if empty
+		 */
+		public long percentile(double percentile) {
+			long count = count();
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for(int i = 0; i < _counts.length(); i ++) {
+				seen += _counts.get(i);
+				if(seen >= rank && seen > 0)
+					return i + 1 < _counts.length() ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+			}
+			return 0;
+		}
+
+		static int index(long value) {
+			if(value < LINEAR)
+				return (int) value;
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB;
+			return (shift + 1) * LINEAR + (int) (value >>> shift) - LINEAR;
+		}
+
+		static long lowest(int index) {
+			if(index < LINEAR)
+				return index;
+			int shift = index / LINEAR - 1;
+			return (long) (index % LINEAR + LINEAR) << shift;
+		}
+	}
+}
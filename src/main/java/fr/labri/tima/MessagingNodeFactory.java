@@ -5,11 +5,21 @@ import fr.labri.tima.ITimedAutomata.*;
 import fr.labri.tima.MessagingNodeFactory.MessageExecutor;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentSearchableLinkedDeque;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.IntUnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.function.Supplier;
 
 public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<MessageExecutor<C>.MessageContext> {
     final NodeFactory<C> _factory;
+    private final AtomicInteger _sendIds = new AtomicInteger();
 
     MessagingNodeFactory(NodeFactory<C> factory) {
         _factory = factory;
@@ -35,7 +45,7 @@ public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<Messa
     }
 
     private Predicate<MessageExecutor<C>.MessageContext> filterMessageFactory(String type, String attr) {
-        return new MessageFilter();
+        return new MessageFilter(CompiledPattern.parse(type));
     }
 
     @Override
@@ -66,81 +76,198 @@ public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<Messa
         };
     }
 
+    /*
+        !target sends a message of type attr (hello by default) to the target automaton, or to every subscriber if target is a topic
+     */
     private Action<MessageExecutor<C>.MessageContext> sendMessageFactory(String type, String attr) {
-        return new SendMessage("someautomata", new Message("hello"));
+        return new SendMessage(type.substring(1).trim(), new Message(attr == null ? "hello" : attr));
     }
 
     class MessageFilter extends ITimedAutomata.PredicateAdapter<MessageExecutor<C>.MessageContext>{
+        final MessagePattern _pattern;
+
+        MessageFilter(MessagePattern pattern) {
+            _pattern = pattern;
+        }
+
         @Override
         public boolean isValid(MessageExecutor<C>.MessageContext context) {
-            return context.select(new MessagePattern() {
-                @Override
-                public boolean match(Message other) {
-                    return other._type == "hello";
-                }
-            });
+            return context.select(_pattern);
+        }
+
+        @Override
+        public String getType() {
+            return _pattern.toString();
         }
     }
 
     class SendMessage extends ITimedAutomata.ActionAdapter<MessageExecutor<C>.MessageContext> {
         private final Message _prototype;
         final String _automaton;
-        int address;
+        /*
+            index of the resolved target in the tables of the executors, unique among the actions of this factory
+         */
+        final int _id = _sendIds.getAndIncrement();
 
-        final Pair<String, Function<Integer, Integer>> _transformations[];
+        final String[] _keys;
+        final IntUnaryOperator[] _transformations;
+        final int[] _slots;
+        volatile SourceSlots _sourceSlots;
 
         public SendMessage(String to, Message prototype) {
-            _automaton = to;
-            _prototype = prototype;
-            _transformations = null;
+            this(to, prototype, Collections.emptyMap());
         }
 
-        public SendMessage(String to, Message prototype, Pair<String, Function<Integer, Integer>>... transformations) {
+        @SafeVarargs
+        public SendMessage(String to, Message prototype, Pair<String, IntUnaryOperator>... transformations) {
             _automaton = to;
             _prototype = prototype;
-            _transformations = transformations;
+            _keys = new String[transformations.length];
+            _transformations = new IntUnaryOperator[transformations.length];
+            for (int i = 0; i < transformations.length; i++) {
+                _keys[i] = transformations[i].fst;
+                _transformations[i] = transformations[i].snd;
+            }
+            _slots = prototype._schema.slots(_keys);
         }
 
-        public SendMessage(String to, Message prototype, Map<String, Function<Integer, Integer>> transformations) {
+        public SendMessage(String to, Message prototype, Map<String, IntUnaryOperator> transformations) {
             _automaton = to;
             _prototype = prototype;
-            _transformations = new Pair[transformations.size()];
+            _keys = new String[transformations.size()];
+            _transformations = new IntUnaryOperator[transformations.size()];
             int i = 0;
-            for (Map.Entry<String, Function<Integer, Integer>> trans : transformations.entrySet()) {
-                _transformations[i++] = Pair.of(trans.getKey(), trans.getValue());
+            for (Map.Entry<String, IntUnaryOperator> trans : transformations.entrySet()) {
+                _keys[i] = trans.getKey();
+                _transformations[i++] = trans.getValue();
             }
+            _slots = prototype._schema.slots(_keys);
+        }
+
+        /*
+            The target is a topic of the executor, or else the name of one of its automata. The action is shared by
+            every executor of the automata, so the target is kept by the executor, chained to next.
+         */
+        SendTarget resolve(MessageExecutor<C> executor, SendTarget next) {
+            int[] subscribers = executor.subscribers(_automaton);
+            int address = subscribers == null ? executor.address(_automaton) : -1;
+            if (subscribers == null && address == -1)
+                throw new TimaException.UnknownTargetException("No automaton nor topic named '" + _automaton + "' to send messages to");
+            return new SendTarget(this, subscribers, address, next);
         }
 
-        int resolveAddress(MessageExecutor<C>.MessageContext context) {
-            if (address == -1)
-                address = 1;
-            return address;
+        /*
+            slots of the transformed keys in the received message, -1 for a field of no message of its type,
+            cached for the last schema seen. The action is shared by the automata of every shard.
+         */
+        private int[] sourceSlots(MessageSchema schema) {
+            SourceSlots cached = _sourceSlots;
+            if (cached == null || !cached.isValidFor(schema))
+                _sourceSlots = cached = new SourceSlots(schema, _keys);
+            return cached._slots;
         }
 
         @Override
         public void preAction(MessageExecutor<C>.MessageContext context) {
-            Message m = new Message(_prototype);
+            Message m = context.newMessage(_prototype);
             Message other = context.currentMessage();
-            for (int i = 0; i < _transformations.length; i++) {
-                Pair<String, Function<Integer, Integer>> transformation = _transformations[i];
-                m.merge(other, transformation.snd, transformation.fst);
+            if (other != null && _keys.length > 0) {
+                int[] from = sourceSlots(other._schema);
+                for (int i = 0; i < _keys.length; i++)
+                    m.set(_slots[i], _transformations[i].applyAsInt(from[i] == -1 ? 0 : other.get(from[i])));
             }
-            context.sendMessage(resolveAddress(context), m);
+            SendTarget target = context.executor().target(this);
+            if (target._subscribers != null)
+                context.broadcast(target._subscribers, m);
+            else
+                context.sendMessage(target._address, m);
+        }
+    }
+
+    /*
+        target of a send action in an executor, the actions of different factories may share an id and are chained
+     */
+    static final class SendTarget {
+        final Object _action;
+        final int[] _subscribers;
+        final int _address;
+        final SendTarget _next;
+
+        SendTarget(Object action, int[] subscribers, int address, SendTarget next) {
+            _action = action;
+            _subscribers = subscribers;
+            _address = address;
+            _next = next;
+        }
+    }
+
+    /*
+        slots of keys in schema, immutable so that it can be published in a single field
+     */
+    static final class SourceSlots {
+        final MessageSchema _schema;
+        final int[] _slots;
+        final boolean _complete;
+        final int _size;
+
+        SourceSlots(MessageSchema schema, String[] keys) {
+            _schema = schema;
+            _size = schema.size();
+            _slots = new int[keys.length];
+            boolean complete = true;
+            for (int i = 0; i < keys.length; i++)
+                complete &= (_slots[i] = schema.indexOf(keys[i])) != -1;
+            _complete = complete;
+        }
+
+        /*
+            a missing field may have been added to the schema since
+         */
+        boolean isValidFor(MessageSchema schema) {
+            return schema == _schema && (_complete || schema.size() == _size);
         }
     }
 
     static class MessageExecutor<C> implements Executor<MessageExecutor<C>.MessageContext> {
         private final ContextProvider<C> _context;
         private final Collection<ITimedAutomata<MessageContext>> _automatons;
+        private Supplier<Mailbox> _mailboxFactory;
         Cursor<MessageContext> _cursors[];
         Mailbox _mailboxes[];
         private MessageContextProvider[] _contexts;
+        private ExecutorService[] _workers;
+        private Future<Integer>[] _shards;
+        private final Map<String, List<Integer>> _subscriptions = new HashMap<>();
+        private Map<String, int[]> _topics = Collections.emptyMap();
+        private final Map<String, Integer> _addresses = new HashMap<>();
+        private SendTarget[] _targets = new SendTarget[0];
+
+        private MailboxMetrics.Sink _metrics = MailboxMetrics.NONE;
+        private boolean _pooled;
+        private boolean _parking;
+        private boolean[][] _waiting;
+        private boolean[] _parked;
+        private long[] _parkedAt;
+        private BitSet _runnable;
+        private int _stepping;
+        private int _parkedCount;
+        private Integer[] _ids;
+        private TimingWheel.Timer<Integer>[] _timers;
+        private int[] _woken;
+        private int _wokenCount;
+        TimingWheel<Integer> _wheel;
+        private long _now;
 
-        @SuppressWarnings("unchecked")
         MessageExecutor(ContextProvider<C> context, Collection<ITimedAutomata<C>> automatas) {
+            this(context, automatas, IndexedMailbox::new);
+        }
+
+        @SuppressWarnings("unchecked")
+        MessageExecutor(ContextProvider<C> context, Collection<ITimedAutomata<C>> automatas, Supplier<Mailbox> mailboxes) {
             _context = context;
             // FIXME this cast scares me ... but actually not I will one day explain why
             _automatons = (Collection<ITimedAutomata<MessageContext>>)(Collection<?>) automatas;
+            _mailboxFactory = mailboxes;
         }
 
         @Override
@@ -151,24 +278,318 @@ public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<Messa
             _contexts = new MessageExecutor.MessageContextProvider[_automatons.size()];
 
             int i = 0;
+            _addresses.clear();
             for (ITimedAutomata<MessageExecutor<C>.MessageContext> automata : _automatons) {
-                _mailboxes[i] = new Mailbox();
+                if (automata.getName() != null)
+                    _addresses.putIfAbsent(automata.getName(), i);
+                _mailboxes[i] = mailbox();
+                _mailboxes[i].metrics(_metrics);
                 _contexts[i] = new MessageContextProvider(i);
                 _cursors[i] = automata.start(null);//new MessageContextProvider<C>.MessageContext(_context, this)); // FIXME
                 i ++;
             }
+            _topics = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> topic : _subscriptions.entrySet()) {
+                List<Integer> automata = topic.getValue();
+                int[] subscribers = new int[automata.size()];
+                for (int j = 0; j < subscribers.length; j++)
+                    subscribers[j] = automata.get(j);
+                _topics.put(topic.getKey(), subscribers);
+            }
+            resolveTargets();
+            if (_parking)
+                startParking();
+            return this;
+        }
+
+        /*
+            Only the step of its owner takes messages out of a mailbox, so a sender blocked on a full mailbox would
+            hold the thread, or the tick, the owner needs to drain it.
+         */
+        private Mailbox mailbox() {
+            Mailbox mailbox = _mailboxFactory.get();
+            if (mailbox instanceof IndexedMailbox && ((IndexedMailbox) mailbox)._policy == OverflowPolicy.BLOCK)
+                throw new IllegalArgumentException("Executors cannot use BLOCK mailboxes, their senders would deadlock");
+            return mailbox;
+        }
+
+        /*
+            resolve the targets of the send actions of every automaton, fail on the first unknown one
+         */
+        @SuppressWarnings("unchecked")
+        private void resolveTargets() {
+            Set<MessagingNodeFactory<C>.SendMessage> sends = Collections.newSetFromMap(new IdentityHashMap<>());
+            int ids = 0;
+            for (ITimedAutomata<MessageContext> automata : _automatons)
+                for (State<MessageContext> state : automata.getStates()) {
+                    List<Action<MessageContext>> actions = state.getActions();
+                    if (actions != null)
+                        for (Action<MessageContext> action : actions)
+                            if (action instanceof MessagingNodeFactory.SendMessage) {
+                                MessagingNodeFactory<C>.SendMessage send = (MessagingNodeFactory<C>.SendMessage) (Object) action;
+                                if (sends.add(send))
+                                    ids = Math.max(ids, send._id + 1);
+                            }
+                }
+            SendTarget[] targets = new SendTarget[ids];
+            for (MessagingNodeFactory<C>.SendMessage send : sends)
+                targets[send._id] = send.resolve(this, targets[send._id]);
+            _targets = targets;
+        }
+
+        /*
+            the target of send resolved by start(), or resolved again if send is not an action of the automata
+         */
+        SendTarget target(MessagingNodeFactory<C>.SendMessage send) {
+            for (SendTarget target = send._id < _targets.length ? _targets[send._id] : null; target != null; target = target._next)
+                if (target._action == send)
+                    return target;
+            return send.resolve(this, null);
+        }
+
+        /*
+            mailbox index of the automaton named name, -1 if none
+         */
+        int address(String name) {
+            Integer address = _addresses.get(name);
+            return address == null ? -1 : address;
+        }
+
+        /*
+            messages sent to topic are delivered to automaton, the index of an automaton of the collection
+         */
+        MessageExecutor<C> subscribe(String topic, int automaton) {
+            if (automaton < 0 || automaton >= _automatons.size())
+                throw new IllegalArgumentException("No automaton " + automaton + " to subscribe to " + topic);
+            _subscriptions.computeIfAbsent(topic, t -> new ArrayList<>()).add(automaton);
+            return this;
+        }
+
+        /*
+            null if topic has no subscriber, the subscriptions are resolved by start()
+         */
+        int[] subscribers(String topic) {
+            return _topics.get(topic);
+        }
+
+        /*
+            Give each automaton a lock-free MpscMailbox instead of an IndexedMailbox. It is unbounded and a typed
+            receive scans every message, but senders of other shards never block the receiver.
+         */
+        MessageExecutor<C> lockFreeMailboxes() {
+            _mailboxFactory = MpscMailbox::new;
+            return this;
+        }
+
+        /*
+            every mailbox reports to sink, nothing is reported unless the JVM runs with -Dtima.metrics=true
+         */
+        MessageExecutor<C> metrics(MailboxMetrics.Sink sink) {
+            _metrics = sink == null ? MailboxMetrics.NONE : sink;
+            return this;
+        }
+
+        /*
+            Messages are taken from per-thread pools and go back to the pool of the receiving thread when the receiver
+            selects its next message or terminates, i.e. once the actions of the state entered with the message have run.
+            A message must not be kept after that, see MessagePool for leak detection.
+         */
+        MessageExecutor<C> pooled() {
+            _pooled = true;
+            return this;
+        }
+
+        /*
+            A compiled automaton waiting in a state whose guards are all message filters does not run until its mailbox
+            receives a message or the timeout of its state fires. Like with a TimingWheelExecutor, a parked automaton
+            does not receive eachAction. Automata are stepped in the same order and on the same ticks as without parking:
+            a woken automaton runs on the current tick if it comes after the sender, on the next tick otherwise.
+         */
+        MessageExecutor<C> parking() {
+            if (_workers != null)
+                throw new IllegalStateException("Threaded executors cannot park automata");
+            _parking = true;
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void startParking() {
+            int len = _cursors.length;
+            Map<ITimedAutomata<MessageContext>, boolean[]> waiting = new IdentityHashMap<>();
+            _waiting = new boolean[len][];
+            _parked = new boolean[len];
+            _parkedAt = new long[len];
+            _runnable = new BitSet(len);
+            _runnable.set(0, len);
+            _ids = new Integer[len];
+            _timers = new TimingWheel.Timer[len];
+            _woken = new int[len];
+            _wokenCount = 0;
+            _stepping = len;
+            _wheel = new TimingWheel<>(_now);
+            for (int i = 0; i < len; i++) {
+                CompiledTimedAutomata<MessageContext> automata = (CompiledTimedAutomata<MessageContext>) compiled(i).getAutomata();
+                _waiting[i] = waiting.computeIfAbsent(automata, a -> waitingStates(automata));
+                _ids[i] = i;
+            }
+            _parkedCount = 0;
+        }
+
+        private boolean[] waitingStates(CompiledTimedAutomata<MessageContext> automata) {
+            boolean[] waiting = new boolean[automata._states.length];
+            for (int state = 0; state < waiting.length; state++) {
+                int n = automata.transitions(state);
+                boolean filters = n > 0;
+                for (int i = 0; i < n && filters; i++)
+                    filters = automata._predicates[automata.predicate(state, i)] instanceof MessagingNodeFactory.MessageFilter;
+                waiting[state] = filters;
+            }
+            return waiting;
+        }
+
+        @SuppressWarnings("unchecked")
+        private CompiledTimedAutomata<MessageContext>.CompiledCursor compiled(int i) {
+            Cursor<MessageContext> cursor = _cursors[i];
+            if (!(cursor instanceof CompiledTimedAutomata.CompiledCursor))
+                throw new IllegalArgumentException("Parking requires compiled automata: " + cursor.getAutomata().getClass().getName());
+            return (CompiledTimedAutomata<MessageContext>.CompiledCursor) cursor;
+        }
+
+        private boolean nextParking() {
+            _wheel.advance(++ _now, this::expire);
+            for (int w = 0; w < _wokenCount; w++)
+                _runnable.set(_woken[w]);
+            _wokenCount = 0;
+            for (int i = _runnable.nextSetBit(0); i >= 0; i = _runnable.nextSetBit(i + 1)) {
+                _stepping = i;
+                CompiledTimedAutomata<MessageContext>.CompiledCursor cursor = compiled(i);
+                long transitions = cursor._transitions;
+                if (cursor.next(_contexts[i])) {
+                    _runnable.clear(i);
+                    _contexts[i]._messageContext.releaseCurrentMessage();
+                } else if (cursor._transitions == transitions && _waiting[i][cursor._current]) {
+                    _parked[i] = true;
+                    _parkedAt[i] = _now;
+                    _parkedCount ++;
+                    if (cursor._currentTimeout > 0)
+                        _timers[i] = _wheel.schedule(_ids[i], _now + cursor._currentTimeout);
+                    _runnable.clear(i);
+                }
+            }
+            _stepping = _cursors.length;
+            return !_runnable.isEmpty() || _parkedCount + _wokenCount > 0;
+        }
+
+        /*
+            the timeout of a parked automaton fires on this tick, the timers of woken automata have been cancelled
+         */
+        private void expire(Integer id) {
+            int i = id;
+            _timers[i] = null;
+            compiled(i).skipToTimeout();
+            unpark(i);
+            _runnable.set(i);
+        }
+
+        /*
+            A message has been sent to automaton i. It runs on this tick if it has not been stepped yet,
+            its timeout is reduced by the ticks it has been parked for since its last step.
+         */
+        private void wake(int i) {
+            if (!_parking || !_parked[i])
+                return;
+            if (_timers[i] != null) {
+                _wheel.cancel(_timers[i]);
+                _timers[i] = null;
+            }
+            unpark(i);
+            boolean now = i > _stepping;
+            CompiledTimedAutomata<MessageContext>.CompiledCursor cursor = compiled(i);
+            if (cursor._currentTimeout > 0)
+                cursor._currentTimeout -= (now ? _now : _now + 1) - 1 - _parkedAt[i];
+            if (now)
+                _runnable.set(i);
+            else
+                _woken[_wokenCount ++] = i;
+        }
+
+        private void unpark(int i) {
+            _parked[i] = false;
+            _parkedCount --;
+        }
+
+        /*
+            Step automaton i on worker i % threads, always the same thread. Messages sent to another shard go through
+            the mailboxes, which are thread-safe. The context provider and the actions must be thread-safe as well.
+         */
+        @SuppressWarnings("unchecked")
+        MessageExecutor<C> threaded(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("Threads must be positive: " + threads);
+            if (_parking)
+                throw new IllegalStateException("Parking executors are not threaded");
+            shutdown();
+            _workers = new ExecutorService[threads];
+            _shards = new Future[threads];
+            for (int w = 0; w < threads; w++) {
+                final String name = "tima-shard-" + w;
+                _workers[w] = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
             return this;
         }
 
+        void shutdown() {
+            if (_workers != null)
+                for (ExecutorService worker : _workers)
+                    worker.shutdown();
+            _workers = null;
+        }
+
         @Override
         public boolean next() {
+            if (_parking)
+                return nextParking();
+            if (_workers == null)
+                return step(0, 1) > 0;
+
+            int threads = _workers.length;
+            for (int w = 0; w < threads; w++) {
+                final int shard = w;
+                _shards[w] = _workers[w].submit(() -> step(shard, threads));
+            }
+            int running = 0;
+            try {
+                for (Future<Integer> shard : _shards)
+                    running += shard.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            return running > 0;
+        }
+
+        /*
+            step the automata from, from + stride, ... return the number of running ones
+         */
+        private int step(int from, int stride) {
             int running = 0;
-            for (int i = 0; i < _cursors.length; i++) {
+            for (int i = from; i < _cursors.length; i += stride) {
                 Cursor<MessageContext> cursor = _cursors[i];
-                if (cursor != null && !cursor.next(_contexts[i]))
+                if (cursor == null)
+                    continue;
+                if (cursor.next(_contexts[i])) {
+                    _cursors[i] = null;
+                    _contexts[i]._messageContext.releaseCurrentMessage();
+                } else
                     running ++;
             }
-            return running > 0;
+            return running;
         }
 
         @Override
@@ -177,15 +598,15 @@ public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<Messa
         }
 
         class MessageContextProvider implements ContextProvider<MessageExecutor<C>.MessageContext> {
-            final int _automataIndex;
+            final MessageContext _messageContext;
 
             MessageContextProvider(int index) {
-                _automataIndex = index;
+                _messageContext = new MessageContext(index);
             }
 
             @Override
             public MessageExecutor<C>.MessageContext getContext() {
-                return _contexts[_automataIndex].getContext();
+                return _messageContext;
             }
         }
 
@@ -201,14 +622,50 @@ public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<Messa
                 return _context.getContext();
             }
 
+            /*
+                a copy of prototype, taken from the message pool of the thread if the executor is pooled
+             */
+            public Message newMessage(Message prototype) {
+                return _pooled ? MessagePool.acquire(prototype) : new Message(prototype);
+            }
+
+            MessageExecutor<C> executor() {
+                return MessageExecutor.this;
+            }
+
+            /*
+                every subscriber receives the same message instance, which must be left untouched by the receivers
+             */
+            public void broadcast(int[] addresses, Message msg) {
+                if (addresses.length == 0) {
+                    msg.release();
+                    return;
+                }
+                msg.retain(addresses.length - 1);
+                for (int address : addresses)
+                    sendMessage(address, msg);
+            }
+
             public void sendMessage(int address, Message msg) {
-                _mailboxes[address].receive(msg);
+                if (_mailboxes[address].receive(msg))
+                    wake(address);
+                else
+                    msg.release();
             }
 
             public Message currentMessage() {
                 return _currentMessage;
             }
 
+            /*
+                the automaton has terminated and will not select another message
+             */
+            void releaseCurrentMessage() {
+                if (_currentMessage != null)
+                    _currentMessage.release();
+                _currentMessage = null;
+            }
+
             final public boolean select(MessagePattern pattern) {
                 return select(pattern, false);
             }
@@ -217,6 +674,8 @@ public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<Messa
                 Message m = mailbox().extractFrom(pattern, first);
                 if (m == null)
                     return false;
+                if (_currentMessage != null)
+                    _currentMessage.release();
                 _currentMessage = m;
                 return true;
             }
@@ -227,71 +686,613 @@ public class MessagingNodeFactory<C> implements ITimedAutomata.NodeFactory<Messa
         }
     }
 
+    /**
+     * Fields of a message type, each field has a slot in the values of the messages of this type.
+     *
+     * A schema only grows: slots are never reused, so slots resolved once stay valid.
+     */
+    static final class MessageSchema {
+        static final Map<String, MessageSchema> _schemas = new ConcurrentHashMap<>();
+
+        final String _type;
+        final Map<String, Integer> _slots = new ConcurrentHashMap<>();
+        private volatile String[] _fields = new String[0];
+
+        private MessageSchema(String type) {
+            _type = type;
+        }
+
+        static MessageSchema of(String type) {
+            return _schemas.computeIfAbsent(type.intern(), MessageSchema::new);
+        }
+
+        int size() {
+            return _fields.length;
+        }
+
+        String field(int slot) {
+            return _fields[slot];
+        }
+
+        /*
+            slot of field, -1 if the schema has no such field
+         */
+        int indexOf(String field) {
+            Integer slot = _slots.get(field);
+            return slot == null ? -1 : slot;
+        }
+
+        /*
+            slot of field, added to the schema if needed
+         */
+        int slot(String field) {
+            Integer slot = _slots.get(field);
+            return slot != null ? slot : add(field);
+        }
+
+        int[] slots(String... fields) {
+            int[] slots = new int[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                slots[i] = slot(fields[i]);
+            return slots;
+        }
+
+        private synchronized int add(String field) {
+            Integer slot = _slots.get(field);
+            if (slot != null)
+                return slot;
+            String[] fields = Arrays.copyOf(_fields, _fields.length + 1);
+            fields[_fields.length] = field;
+            _fields = fields;
+            _slots.put(field, fields.length - 1);
+            return fields.length - 1;
+        }
+    }
+
+    /**
+     * A typed message, its payload is an int per field of the schema of its type. Fields which have not been set read 0.
+     */
     static class Message {
+        static final AtomicIntegerFieldUpdater<Message> REFS = AtomicIntegerFieldUpdater.newUpdater(Message.class, "_refs");
+
         final String _type;
-        final Map<String, Integer> _data;
+        final MessageSchema _schema;
+        int[] _values;
+        boolean _pooled;
+        volatile int _refs;
+        Throwable _acquiredAt;
+        /*
+            when the message was first queued, 0 before: a broadcast message is queued in several mailboxes
+         */
+        long _receivedAt;
 
         Message(String type) {
-            this(type, new HashMap<>());
+            this(MessageSchema.of(type));
+        }
+
+        Message(MessageSchema schema) {
+            _type = schema._type;
+            _schema = schema;
+            _values = new int[schema.size()];
         }
 
         Message(Message other) {
-            this(other._type, other);
+            _type = other._type;
+            _schema = other._schema;
+            _values = other._values.clone();
         }
 
         Message(String type, Message other) {
-            this(type, new HashMap<>(other.data()));
+            this(type);
+            for (int slot = 0; slot < other._values.length; slot++)
+                set(other._schema.field(slot), other._values[slot]);
         }
 
-        private Message(String type, Map<String, Integer> data) {
-            _type = type.intern();
-            _data = data;
+        /*
+            null if the schema of this message has no such field
+         */
+        public Integer get(String key) {
+            int slot = _schema.indexOf(key);
+            return slot == -1 ? null : get(slot);
         }
 
-        public Integer get(String key) {
-            return _data.get(key);
+        public int get(int slot) {
+            return slot < _values.length ? _values[slot] : 0;
+        }
+
+        public Message set(String key, int value) {
+            return set(_schema.slot(key), value);
+        }
+
+        public Message set(int slot, int value) {
+            if (slot >= _values.length)
+                _values = Arrays.copyOf(_values, _schema.size());
+            _values[slot] = value;
+            return this;
         }
 
         public Map<String, Integer> data() {
-            return Collections.unmodifiableMap(_data);
+            Map<String, Integer> data = new HashMap<>();
+            for (int slot = 0; slot < _values.length; slot++)
+                data.put(_schema.field(slot), _values[slot]);
+            return Collections.unmodifiableMap(data);
+        }
+
+        /*
+            overwrite the payload with the one of other, which has the same schema
+         */
+        void copy(Message other) {
+            if (_values.length == other._values.length)
+                System.arraycopy(other._values, 0, _values, 0, _values.length);
+            else
+                _values = other._values.clone();
+        }
+
+        /*
+            more receivers hold this pooled message
+         */
+        public Message retain() {
+            return retain(1);
         }
 
-        public Message merge(Message other, Function<Integer, Integer> transform, String key) {
-            _data.put(key, transform.apply(other.get(key)));
+        public Message retain(int receivers) {
+            if (_pooled)
+                REFS.addAndGet(this, receivers);
             return this;
         }
 
-        public Message merge(Message other, Function<Integer, Integer> transform, String... keys) {
-            for (String key: keys) {
-                _data.put(key, transform.apply(other.get(key)));
-            }
+        /*
+            the last release of a pooled message gives it back to the pool, other messages are left to the GC
+         */
+        public void release() {
+            if (!_pooled)
+                return;
+            int refs = REFS.decrementAndGet(this);
+            if (refs == 0)
+                MessagePool.recycle(this);
+            else if (refs < 0)
+                throw new IllegalStateException("Message released more times than retained: " + _type);
+        }
+
+        /*
+            set key to the transformed value of key in other, which reads 0 if the schema of other has no such field
+         */
+        public Message merge(Message other, IntUnaryOperator transform, String key) {
+            int slot = other._schema.indexOf(key);
+            return set(key, transform.applyAsInt(slot == -1 ? 0 : other.get(slot)));
+        }
+
+        public Message merge(Message other, IntUnaryOperator transform, String... keys) {
+            for (String key: keys)
+                merge(other, transform, key);
             return this;
         }
 
         static class Factory {
-            Message newSimpleMessage(String type, Map.Entry<String, Integer>... values) {
-                HashMap data = new HashMap();
-                for (Map.Entry<String, Integer> value: values) {
-                    data.put(value.getKey(), value.getValue());
+            @SafeVarargs
+            final Message newSimpleMessage(String type, Map.Entry<String, Integer>... values) {
+                Message m = new Message(type);
+                for (Map.Entry<String, Integer> value: values)
+                    m.set(value.getKey(), value.getValue());
+                return m;
+            }
+        }
+    }
+
+    /**
+     * Per-thread free lists of messages, by schema.
+     *
+     * With -Dtima.pool.debug=true, messages which have been acquired and not released yet are tracked
+     * along with the stack trace of their acquisition.
+     */
+    static final class MessagePool {
+        static final int MAX_POOLED = 1 << 10;
+        static boolean _debug = Boolean.getBoolean("tima.pool.debug");
+
+        static final ThreadLocal<Map<MessageSchema, ArrayDeque<Message>>> _pools = ThreadLocal.withInitial(IdentityHashMap::new);
+        static final Set<Message> _outstanding = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        static Message acquire(Message prototype) {
+            ArrayDeque<Message> pool = pool(prototype._schema);
+            Message m = pool.pollLast();
+            if (m == null) {
+                m = new Message(prototype);
+                m._pooled = true;
+            } else
+                m.copy(prototype);
+            m._refs = 1;
+            m._receivedAt = 0;
+            if (_debug) {
+                m._acquiredAt = new Throwable("Message acquired here");
+                _outstanding.add(m);
+            }
+            return m;
+        }
+
+        static void recycle(Message m) {
+            if (m._acquiredAt != null) {
+                _outstanding.remove(m);
+                m._acquiredAt = null;
+            }
+            ArrayDeque<Message> pool = pool(m._schema);
+            if (pool.size() < MAX_POOLED)
+                pool.addLast(m);
+        }
+
+        /*
+            where the messages not released yet have been acquired, empty if not in debug mode
+         */
+        static List<Throwable> leaks() {
+            List<Throwable> leaks = new ArrayList<>();
+            for (Message m : _outstanding) {
+                Throwable at = m._acquiredAt;
+                if (at != null)
+                    leaks.add(at);
+            }
+            return leaks;
+        }
+
+        private static ArrayDeque<Message> pool(MessageSchema schema) {
+            Map<MessageSchema, ArrayDeque<Message>> pools = _pools.get();
+            ArrayDeque<Message> pool = pools.get(schema);
+            if (pool == null)
+                pools.put(schema, pool = new ArrayDeque<>());
+            return pool;
+        }
+    }
+
+    /**
+     * Pattern of a <code>?type(field op value, ...)</code> guard, op being one of == != &lt; &lt;= &gt; &gt;=.
+     *
+     * Fields are resolved to slots when the guard is parsed, matching a message compares its schema
+     * then reads its slots.
+     */
+    static final class CompiledPattern extends MessagePattern {
+        static final Pattern GUARD = Pattern.compile("\\?\\s*(\\w+)\\s*(?:\\((.*)\\))?\\s*");
+        static final Pattern CONDITION = Pattern.compile("\\s*(\\w+)\\s*(==|!=|<=|>=|<|>)\\s*(-?\\d+)\\s*");
+        static final String[] OPS = { "==", "!=", "<", "<=", ">", ">=" };
+        static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+        final String _guard;
+        final MessageSchema _schema;
+        final int[] _slots;
+        final int[] _ops;
+        final int[] _values;
+
+        private CompiledPattern(String guard, MessageSchema schema, int[] slots, int[] ops, int[] values) {
+            super(schema._type);
+            _guard = guard;
+            _schema = schema;
+            _slots = slots;
+            _ops = ops;
+            _values = values;
+        }
+
+        static CompiledPattern parse(String guard) {
+            Matcher m = GUARD.matcher(guard);
+            if (!m.matches())
+                throw new RuntimeException("Invalid message pattern: " + guard);
+            MessageSchema schema = MessageSchema.of(m.group(1));
+            String body = m.group(2);
+            String[] conditions = body == null || body.trim().isEmpty() ? new String[0] : body.split(",");
+            int[] slots = new int[conditions.length], ops = new int[conditions.length], values = new int[conditions.length];
+            for (int i = 0; i < conditions.length; i++) {
+                Matcher c = CONDITION.matcher(conditions[i]);
+                if (!c.matches())
+                    throw new RuntimeException("Invalid condition '" + conditions[i].trim() + "' in message pattern: " + guard);
+                slots[i] = schema.slot(c.group(1));
+                ops[i] = Arrays.asList(OPS).indexOf(c.group(2));
+                try {
+                    values[i] = Integer.parseInt(c.group(3));
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("Invalid value '" + c.group(3) + "' in message pattern: " + guard);
+                }
+            }
+            return new CompiledPattern(guard, schema, slots, ops, values);
+        }
+
+        @Override
+        public boolean match(Message other) {
+            if (other._schema != _schema)
+                return false;
+            for (int i = 0; i < _slots.length; i++) {
+                int v = other.get(_slots[i]), value = _values[i];
+                boolean ok;
+                switch (_ops[i]) {
+                case EQ: ok = v == value; break;
+                case NE: ok = v != value; break;
+                case LT: ok = v < value; break;
+                case LE: ok = v <= value; break;
+                case GT: ok = v > value; break;
+                default: ok = v >= value;
                 }
-                return new Message(type, data);
+                if (!ok)
+                    return false;
             }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return _guard;
         }
     }
 
-    static class Mailbox {
-        ConcurrentSearchableLinkedDeque<Message> queue = new ConcurrentSearchableLinkedDeque<>();
+    interface Mailbox {
+        /*
+            return false if the message has been dropped
+         */
+        boolean receive(Message msg);
+
+        /*
+            remove and return the oldest message matching pattern, or the oldest message if it matches and first is set
+         */
+        Message extractFrom(MessagePattern pattern, boolean first);
+
+        int size();
+
+        /*
+            where the mailbox reports its traffic, only used when MailboxMetrics.ENABLED is set
+         */
+        void metrics(MailboxMetrics.Sink sink);
+    }
+
+    /**
+     * Reports the traffic of a mailbox to its sink when metrics are enabled.
+     *
+     * The number of messages scanned by a selective receive is the number of calls to the pattern,
+     * counted by a wrapper so that the queues do not have to know about metrics.
+     */
+    abstract static class InstrumentedMailbox implements Mailbox {
+        MailboxMetrics.Sink _metrics = MailboxMetrics.NONE;
+
+        abstract boolean enqueue(Message msg);
+
+        abstract Message extract(MessagePattern pattern, boolean first);
 
-        public void receive(Message msg) {
-            queue.addLast(msg);
+        @Override
+        public void metrics(MailboxMetrics.Sink sink) {
+            _metrics = sink == null ? MailboxMetrics.NONE : sink;
+        }
+
+        @Override
+        public final boolean receive(Message msg) {
+            if (!MailboxMetrics.ENABLED)
+                return enqueue(msg);
+            if (msg._receivedAt == 0)
+                msg._receivedAt = System.nanoTime();
+            boolean queued = enqueue(msg);
+            if (queued)
+                _metrics.received(size());
+            else
+                _metrics.dropped();
+            return queued;
         }
 
-        public Message extractFrom(MessagePattern pattern, boolean first) {
-            return first ? queue.removeFirstIf(pattern) : queue.removeFirstMatching(pattern);
+        @Override
+        public final Message extractFrom(MessagePattern pattern, boolean first) {
+            if (!MailboxMetrics.ENABLED)
+                return extract(pattern, first);
+            CountingPattern counting = new CountingPattern(pattern);
+            Message m = extract(counting, first);
+            if (m == null)
+                _metrics.missed(counting._scanned);
+            else
+                _metrics.consumed(size(), counting._scanned, System.nanoTime() - m._receivedAt);
+            return m;
+        }
+    }
+
+    static final class CountingPattern extends MessagePattern {
+        final MessagePattern _pattern;
+        int _scanned;
+
+        CountingPattern(MessagePattern pattern) {
+            super(pattern.type());
+            _pattern = pattern;
+        }
+
+        @Override
+        public boolean match(Message other) {
+            _scanned ++;
+            return _pattern.match(other);
+        }
+    }
+
+    enum OverflowPolicy {
+        DROP_NEWEST, DROP_OLDEST, BLOCK
+    }
+
+    /**
+     * Mailbox keeping one FIFO per message type, the global order is kept by sequence numbers.
+     *
+     * A pattern with a type only scans the messages of this type, usually matching the first one,
+     * a pattern without type scans every message in their global order.
+     * When full, a message is dropped or the sender blocks until the owner consumes a message (the sender must then run on another thread,
+     * a MessageExecutor rejects BLOCK mailboxes since it steps the owner on the same thread or tick as the senders).
+     */
+    static class IndexedMailbox extends InstrumentedMailbox {
+        static final int UNBOUNDED = Integer.MAX_VALUE;
+
+        final Map<String, SubQueue> _queues = new IdentityHashMap<>();
+        final int _capacity;
+        final OverflowPolicy _policy;
+        long _seq;
+        int _size;
+
+        IndexedMailbox() {
+            this(UNBOUNDED, OverflowPolicy.DROP_NEWEST);
+        }
+
+        IndexedMailbox(int capacity, OverflowPolicy policy) {
+            if (capacity < 1)
+                throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+            _capacity = capacity;
+            _policy = policy;
+        }
+
+        @Override
+        synchronized boolean enqueue(Message msg) {
+            while (_size >= _capacity) {
+                switch (_policy) {
+                case DROP_NEWEST:
+                    return false;
+                case DROP_OLDEST:
+                    oldest().remove(0).release();
+                    _size --;
+                    if (MailboxMetrics.ENABLED)
+                        _metrics.evicted();
+                    break;
+                case BLOCK:
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            SubQueue queue = _queues.get(msg._type);
+            if (queue == null)
+                _queues.put(msg._type, queue = new SubQueue());
+            queue.add(msg, _seq ++);
+            _size ++;
+            return true;
+        }
+
+        @Override
+        synchronized Message extract(MessagePattern pattern, boolean first) {
+            if (_size == 0)
+                return null;
+            String type = pattern.type();
+            SubQueue queue;
+            int i = -1;
+            if (first) {
+                queue = oldest();
+                if (type == null || queue.type() == type)
+                    i = pattern.match(queue.get(0)) ? 0 : -1;
+            } else if (type != null) {
+                queue = _queues.get(type);
+                if (queue != null)
+                    for (int j = 0; j < queue._size && i == -1; j ++)
+                        if (pattern.match(queue.get(j)))
+                            i = j;
+            } else {
+                queue = null;
+                for (SubQueue q : _queues.values())
+                    for (int j = 0; j < q._size; j ++)
+                        if ((queue == null || q.seq(j) < queue.seq(i)) && pattern.match(q.get(j))) {
+                            queue = q;
+                            i = j;
+                            break;
+                        }
+            }
+            if (i == -1)
+                return null;
+            Message m = queue.remove(i);
+            if (_size -- == _capacity)
+                notifyAll();
+            return m;
+        }
+
+        @Override
+        public synchronized int size() {
+            return _size;
+        }
+
+        /*
+            the queue holding the oldest message, the mailbox must not be empty
+         */
+        private SubQueue oldest() {
+            SubQueue oldest = null;
+            for (SubQueue q : _queues.values())
+                if (q._size > 0 && (oldest == null || q.seq(0) < oldest.seq(0)))
+                    oldest = q;
+            return oldest;
+        }
+
+        /*
+            ring buffer of messages and their sequence numbers
+         */
+        static final class SubQueue {
+            Message[] _messages = new Message[8];
+            long[] _seqs = new long[8];
+            int _head;
+            int _size;
+
+            String type() {
+                return _messages[_head]._type;
+            }
+
+            Message get(int i) {
+                return _messages[(_head + i) & (_messages.length - 1)];
+            }
+
+            long seq(int i) {
+                return _seqs[(_head + i) & (_seqs.length - 1)];
+            }
+
+            void add(Message msg, long seq) {
+                if (_size == _messages.length)
+                    grow();
+                int tail = (_head + _size ++) & (_messages.length - 1);
+                _messages[tail] = msg;
+                _seqs[tail] = seq;
+            }
+
+            Message remove(int i) {
+                int mask = _messages.length - 1;
+                Message m = get(i);
+                if (i == 0) {
+                    _messages[_head] = null;
+                    _head = (_head + 1) & mask;
+                } else {
+                    for (int j = i; j < _size - 1; j ++) {
+                        _messages[(_head + j) & mask] = _messages[(_head + j + 1) & mask];
+                        _seqs[(_head + j) & mask] = _seqs[(_head + j + 1) & mask];
+                    }
+                    _messages[(_head + _size - 1) & mask] = null;
+                }
+                _size --;
+                return m;
+            }
+
+            private void grow() {
+                int len = _messages.length;
+                Message[] messages = new Message[len << 1];
+                long[] seqs = new long[len << 1];
+                for (int i = 0; i < _size; i ++) {
+                    messages[i] = get(i);
+                    seqs[i] = seq(i);
+                }
+                _messages = messages;
+                _seqs = seqs;
+                _head = 0;
+            }
         }
     }
 
     abstract static class MessagePattern {
+        private final String _type;
+
+        /*
+            a pattern matching messages of any type
+         */
+        MessagePattern() {
+            _type = null;
+        }
+
+        /*
+            a pattern only matching messages of type, of any type if null
+         */
+        MessagePattern(String type) {
+            _type = type == null ? null : type.intern();
+        }
+
+        final String type() {
+            return _type;
+        }
+
         abstract public boolean match(Message other);
 
         @Override
@@ -0,0 +1,90 @@
+package fr.labri.tima;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import fr.labri.tima.MessagingNodeFactory.InstrumentedMailbox;
+import fr.labri.tima.MessagingNodeFactory.Message;
+import fr.labri.tima.MessagingNodeFactory.MessagePattern;
+
+/**
+ * Unbounded mailbox for many senders and a single receiver, the automaton owning the mailbox.
+ *
+ * Senders append with one atomic swap of the tail (Vyukov's MPSC queue) and never read the rest of the list,
+ * so the receiver removes messages anywhere in the list with plain stores: a node is unlinked once its successor is
+ * known, the last node may still get a successor from a sender so it is only emptied and unlinked by a later receive.
+ * Only the receiver may call extractFrom. The size is an atomic counter, so it is O(1) but may lag behind the list
+ * while a message is being added or removed.
+ */
+class MpscMailbox extends InstrumentedMailbox {
+	static final AtomicReferenceFieldUpdater<MpscMailbox, Node> TAIL = AtomicReferenceFieldUpdater.newUpdater(MpscMailbox.class, Node.class, "_tail");
+	static final AtomicReferenceFieldUpdater<Node, Node> NEXT = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "_next");
+	static final AtomicIntegerFieldUpdater<MpscMailbox> SIZE = AtomicIntegerFieldUpdater.newUpdater(MpscMailbox.class, "_size");
+
+	volatile Node _tail;
+	volatile int _size;
+	/*
+		the node before the first message, owned by the receiver
+	 */
+	Node _head;
+
+	MpscMailbox() {
+		_head = _tail = new Node(null);
+	}
+
+	@Override
+	boolean enqueue(Message msg) {
+		Node node = new Node(msg);
+		NEXT.lazySet(TAIL.getAndSet(this, node), node);
+		SIZE.incrementAndGet(this);
+		return true;
+	}
+
+	@Override
+	Message extract(MessagePattern pattern, boolean first) {
+		Node pred = _head, node;
+		while((node = pred._next) != null) {
+			Message msg = node._message;
+			if(msg != null) {
+				if(pattern.match(msg)) {
+					node._message = null;
+					unlink(pred, node);
+					SIZE.decrementAndGet(this);
+					return msg;
+				}
+				if(first)
+					return null;
+				pred = node;
+			} else
+				pred = unlink(pred, node);
+		}
+		return null;
+	}
+
+	/*
+		unlink the emptied successor of pred if possible, return the node to continue the scan from
+	 */
+	private Node unlink(Node pred, Node node) {
+		if(pred == _head)
+			return _head = node;
+		Node next = node._next;
+		if(next == null)
+			return node;
+		NEXT.lazySet(pred, next);
+		return pred;
+	}
+
+	@Override
+	public int size() {
+		return _size;
+	}
+
+	static final class Node {
+		Message _message;
+		volatile Node _next;
+
+		Node(Message message) {
+			_message = message;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package fr.labri.tima;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import fr.labri.tima.ITimedAutomata.ContextProvider;
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.RunReport;
+
+/**
+ * Steps the cursors of a {@link BasicExecutor} on a {@link ForkJoinPool}.
+ *
+ * Alive cursors are split into chunks of <code>grain</code> cursors, each chunk is stepped and compacted by a single task,
+ * then chunks are packed back at the head of the cursor array. A tick still steps every alive cursor exactly once,
+ * but cursors of different chunks run concurrently: the context provider and the actions must be thread-safe.
+ * Below <code>threshold</code> alive cursors the executor behaves as a {@link BasicExecutor}.
+ * A memoizing executor gives each chunk its own {@link PredicateMemo}, so guard results are only shared within a chunk.
+ */
+public class ParallelExecutor<C> extends BasicExecutor<C> {
+	public static final int DEFAULT_THRESHOLD = 1 << 12;
+	public static final int DEFAULT_GRAIN = 1 << 10;
+
+	final ForkJoinPool _pool;
+	final int _threshold;
+	final int _grain;
+	int[] _survivors = new int[0];
+	@SuppressWarnings("unchecked")
+	PredicateMemo<C>[] _memos = new PredicateMemo[0];
+
+	public ParallelExecutor(ContextProvider<C> context, Collection<ITimedAutomata<C>> automatas) {
+		this(context, automatas, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD, DEFAULT_GRAIN);
+	}
+
+	public ParallelExecutor(ContextProvider<C> context, Collection<ITimedAutomata<C>> automatas, ForkJoinPool pool, int threshold, int grain) {
+		super(context, automatas);
+		if(grain < 1)
+			throw new IllegalArgumentException("Grain must be positive: " + grain);
+		_pool = pool;
+		_threshold = Math.max(threshold, grain);
+		_grain = grain;
+	}
+
+	@Override
+	public ParallelExecutor<C> start() {
+		super.start();
+		return this;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public ParallelExecutor<C> memoize(int predicates) {
+		super.memoize(predicates);
+		_memos = new PredicateMemo[0];
+		return this;
+	}
+
+	@Override
+	public boolean next() {
+		if(_alive < _threshold)
+			return super.next();
+		_pool.invoke(new Chunks(0, chunks(), null, null, 0, 0));
+		return pack();
+	}
+
+	@Override
+	public RunReport feed(C[] events, int off, int len, RunReport report) {
+		if(_alive < _threshold)
+			return super.feed(events, off, len, report);
+		int chunks = chunks();
+		RunReport[] reports = new RunReport[chunks];
+		_pool.invoke(new Chunks(0, chunks, reports, events, off, len));
+		for(RunReport r: reports) {
+			report.steps += r.steps;
+			report.transitions += r.transitions;
+			report.terminated += r.terminated;
+		}
+		pack();
+		return report;
+	}
+
+	private int chunks() {
+		int chunks = (_alive + _grain - 1) / _grain;
+		if(_survivors.length < chunks)
+			_survivors = new int[chunks];
+		if(_memo != null && _memos.length < chunks) {
+			int size = _memo._done.length << 6;
+			int len = _memos.length;
+			_memos = Arrays.copyOf(_memos, chunks);
+			for(int c = len; c < chunks; c ++)
+				_memos[c] = new PredicateMemo<>(size);
+		}
+		return chunks;
+	}
+
+	/*
+		move the survivors of each chunk right after the survivors of the previous ones
+	 */
+	private boolean pack() {
+		int chunks = (_alive + _grain - 1) / _grain;
+		int alive = _alive;
+		int n = _survivors[0];
+		for(int c = 1; c < chunks; c ++) {
+			int count = _survivors[c];
+			System.arraycopy(_cursors, c * _grain, _cursors, n, count);
+			n += count;
+		}
+		_alive = n;
+		if(alive != _alive && _viewer != null)
+			_viewer.update();
+		return _alive > 0;
+	}
+
+	/*
+		step (or feed) the cursors of a chunk, compact the survivors at the head of the chunk
+	 */
+	int step(int chunk, RunReport[] reports, C[] events, int off, int len) {
+		int from = chunk * _grain;
+		int to = Math.min(from + _grain, _alive);
+		RunReport report = null;
+		if(reports != null)
+			report = reports[chunk] = new RunReport();
+		PredicateMemo<C> memo = report == null && _memo != null ? _memos[chunk] : null;
+		if(memo != null)
+			memo.clear();
+
+		Cursor<C>[] cursors = _cursors;
+		int w = from;
+		for(int i = from; i < to; i ++) {
+			Cursor<C> cursor = cursors[i];
+			if(!(report != null ? cursor.run(events, off, len, report) : memo != null ? next(cursor, memo) : cursor.next(_context)))
+				cursors[w ++] = cursor;
+		}
+		return _survivors[chunk] = w - from;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean next(Cursor<C> cursor, PredicateMemo<C> memo) {
+		if(cursor instanceof CompiledTimedAutomata.CompiledCursor)
+			return ((CompiledTimedAutomata<C>.CompiledCursor) cursor).next(_context, memo);
+		return cursor.next(_context);
+	}
+
+	@SuppressWarnings("serial")
+	class Chunks extends RecursiveAction {
+		final int _lo, _hi;
+		final RunReport[] _reports;
+		final C[] _events;
+		final int _off, _len;
+
+		Chunks(int lo, int hi, RunReport[] reports, C[] events, int off, int len) {
+			_lo = lo;
+			_hi = hi;
+			_reports = reports;
+			_events = events;
+			_off = off;
+			_len = len;
+		}
+
+		@Override
+		protected void compute() {
+			if(_hi - _lo == 1) {
+				step(_lo, _reports, _events, _off, _len);
+			} else {
+				int mid = (_lo + _hi) >>> 1;
+				invokeAll(new Chunks(_lo, mid, _reports, _events, _off, _len), new Chunks(mid, _hi, _reports, _events, _off, _len));
+			}
+		}
+	}
+}
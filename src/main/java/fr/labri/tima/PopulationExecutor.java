@@ -0,0 +1,225 @@
+package fr.labri.tima;
+
+import java.util.AbstractList;
+import java.util.Collection;
+
+import fr.labri.tima.ITimedAutomata.ContextProvider;
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.Executor;
+import fr.labri.tima.ITimedAutomata.Predicate;
+import fr.labri.tima.ITimedAutomata.RunReport;
+import fr.labri.tima.ITimedAutomata.State;
+
+/**
+ * Runs a population of instances of a single compiled automaton.
+ *
+ * Instead of one cursor object per instance, the state of the instances lives in parallel arrays
+ * (current state, remaining timeout, last valid predicate), that is 12 bytes per instance, and a tick is a linear scan.
+ * A terminated instance keeps its last state, encoded as <code>-1 - state</code>.
+ */
+public class PopulationExecutor<C> implements Executor<C> {
+	public interface InstanceProvider<C> {
+		C getContext(int instance);
+	}
+
+	final CompiledTimedAutomata<C> _automata;
+	final ContextProvider<C> _context;
+	final InstanceProvider<C> _instances;
+
+	final int[] _current;
+	final int[] _timeout;
+	final int[] _lastPredicate;
+	int _alive;
+	long _transitions;
+
+	/*
+		every instance sees the same context during a tick
+	 */
+	public PopulationExecutor(ContextProvider<C> context, ITimedAutomata<C> automata, int size) {
+		this(context, null, automata, size);
+	}
+
+	/*
+		each instance has its own context
+	 */
+	public PopulationExecutor(InstanceProvider<C> instances, ITimedAutomata<C> automata, int size) {
+		this(null, instances, automata, size);
+	}
+
+	private PopulationExecutor(ContextProvider<C> context, InstanceProvider<C> instances, ITimedAutomata<C> automata, int size) {
+		ITimedAutomata<C> compiled = automata.compile();
+		if(!(compiled instanceof CompiledTimedAutomata))
+			throw new IllegalArgumentException("Populations require a compiled automata: " + compiled.getClass().getName());
+		_automata = (CompiledTimedAutomata<C>) compiled;
+		_context = context;
+		_instances = instances;
+		_current = new int[size];
+		_timeout = new int[size];
+		_lastPredicate = new int[size];
+	}
+
+	@Override
+	public PopulationExecutor<C> start() {
+		for(int i = 0; i < _current.length; i ++)
+			reset(i);
+		_alive = _current.length;
+		return this;
+	}
+
+	@Override
+	public boolean next() {
+		int[] current = _current;
+		C shared = _context == null ? null : _context.getContext();
+		for(int i = 0; i < current.length; i ++) {
+			if(current[i] < 0)
+				continue;
+			if(step(i, _instances == null ? shared : _instances.getContext(i)))
+				kill(i);
+		}
+		return _alive > 0;
+	}
+
+	/*
+		restart an instance from the initial state
+	 */
+	public void reset(int instance) {
+		if(_current[instance] < 0)
+			_alive ++;
+		int initial = _automata._initial;
+		_current[instance] = initial;
+		_timeout[instance] = _automata._timeouts[initial];
+		_lastPredicate[instance] = -1;
+	}
+
+	public int size() {
+		return _current.length;
+	}
+
+	public int getAlive() {
+		return _alive;
+	}
+
+	public boolean isAlive(int instance) {
+		return _current[instance] >= 0;
+	}
+
+	public State<C> getState(int instance) {
+		int current = _current[instance];
+		return _automata._states[current < 0 ? -1 - current : current];
+	}
+
+	public Predicate<C> getLastValidPredicate(int instance) {
+		int pred = _lastPredicate[instance];
+		return pred == -1 ? null : _automata._predicates[pred];
+	}
+
+	public Cursor<C> getCursor(int instance) {
+		return new InstanceCursor(instance);
+	}
+
+	@Override
+	public Collection<Cursor<C>> getCursors() {
+		return new AbstractList<Cursor<C>>() {
+			@Override
+			public Cursor<C> get(int index) {
+				return getCursor(index);
+			}
+
+			@Override
+			public int size() {
+				return _current.length;
+			}
+		};
+	}
+
+	private void kill(int instance) {
+		_current[instance] = -1 - _current[instance];
+		_alive --;
+	}
+
+	/*
+		same semantic as CompiledTimedAutomata.CompiledCursor.step()
+	 */
+	final boolean step(int instance, C ctx) {
+		CompiledTimedAutomata<C> auto = _automata;
+		boolean urgent, terminal = false;
+		do {
+			int current = _current[instance];
+			int timeout = _timeout[instance];
+			int target = -1;
+			urgent = false;
+
+			if(timeout > 0 && (_timeout[instance] = timeout - 1) == 0)
+				target = auto._timeoutsTarget[current];
+			else {
+				int i = auto.select(current, ctx);
+				if(i != -1) {
+					_lastPredicate[instance] = auto.predicate(current, i);
+					target = auto.target(current, i);
+				}
+			}
+			if(target == -1) {
+				auto.eachAction(current, ctx);
+			} else {
+				_transitions ++;
+				auto.postAction(current, ctx);
+				_current[instance] = target;
+				_timeout[instance] = auto._timeouts[target];
+				auto.preAction(target, ctx);
+				int modifiers = auto._states[target].getModifier();
+				urgent = (modifiers & ITimedAutomata.URGENT) > 0;
+				terminal = (modifiers & ITimedAutomata.TERMINATE) > 0;
+			}
+		} while(urgent);
+		return terminal;
+	}
+
+	final class InstanceCursor implements Cursor<C> {
+		final int _instance;
+
+		InstanceCursor(int instance) {
+			_instance = instance;
+		}
+
+		@Override
+		public boolean next(ContextProvider<C> provider) {
+			if(!isAlive(_instance))
+				return true;
+			if(step(_instance, provider.getContext())) {
+				kill(_instance);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean run(C[] events, int off, int len, RunReport report) {
+			if(!isAlive(_instance))
+				return true;
+			long transitions = _transitions;
+			int i = off, end = off + len;
+			boolean terminal = false;
+			while(i < end && !terminal)
+				terminal = step(_instance, events[i ++]);
+			if(terminal)
+				kill(_instance);
+			report.add(i - off, _transitions - transitions, terminal);
+			return terminal;
+		}
+
+		@Override
+		public Predicate<C> getLastValidPredicate() {
+			return PopulationExecutor.this.getLastValidPredicate(_instance);
+		}
+
+		@Override
+		public ITimedAutomata<C> getAutomata() {
+			return _automata;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + _instance + ":" + getState(_instance);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package fr.labri.tima;
+
+import java.util.Arrays;
+
+import fr.labri.tima.ITimedAutomata.Predicate;
+
+/**
+ * Results of the predicates evaluated during the current tick, indexed by global predicate id.
+ *
+ * Two bitsets: whether a predicate has been evaluated since the last {@link #clear()}, and its result.
+ * Not thread-safe.
+ */
+public class PredicateMemo<C> {
+	final long[] _done;
+	final long[] _valid;
+
+	public PredicateMemo(int size) {
+		_done = new long[(size + 63) >>> 6];
+		_valid = new long[_done.length];
+	}
+
+	public void clear() {
+		Arrays.fill(_done, 0);
+	}
+
+	final boolean isValid(int id, Predicate<C> predicate, C context) {
+		int word = id >>> 6;
+		long bit = 1L << id;
+		if((_done[word] & bit) != 0)
+			return (_valid[word] & bit) != 0;
+		boolean valid = predicate.isValid(context);
+		_done[word] |= bit;
+		if(valid)
+			_valid[word] |= bit;
+		else
+			_valid[word] &= ~bit;
+		return valid;
+	}
+}
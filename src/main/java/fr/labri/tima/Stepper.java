@@ -0,0 +1,36 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.Predicate;
+import fr.labri.tima.ITimedAutomata.State;
+
+/**
+ * Guards and callbacks of a compiled automaton, specialized per state.
+ *
+ * Subclasses are generated by {@link BytecodeCompiler}: each guard and each action gets its own call site,
+ * so that the JIT sees monomorphic calls it can inline instead of the megamorphic ones of the table automaton.
+ */
+public abstract class Stepper<C> {
+	protected final Predicate<C>[] _predicates;
+	protected final Action<C>[] _actions;
+	protected final State<C>[] _states;
+	protected final int[] _chunks;
+
+	protected Stepper(Predicate<C>[] predicates, Action<C>[] actions, State<C>[] states, int[] chunks) {
+		_predicates = predicates;
+		_actions = actions;
+		_states = states;
+		_chunks = chunks;
+	}
+
+	/*
+		return the index of the first valid transition of state, -1 if none
+	 */
+	public abstract int select(int state, C context);
+
+	public abstract void preAction(int state, C context);
+
+	public abstract void eachAction(int state, C context);
+
+	public abstract void postAction(int state, C context);
+}
@@ -6,4 +6,10 @@ public class TimaException extends RuntimeException {
             super(s);
         }
     }
+
+    public static class UnknownTargetException extends RuntimeException {
+        public UnknownTargetException(String s) {
+            super(s);
+        }
+    }
 }
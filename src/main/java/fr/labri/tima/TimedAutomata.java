@@ -1,6 +1,7 @@
 package fr.labri.tima;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -14,17 +15,36 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 	public static final int INFINITY = -1;
 	public static final int TIMEOUT = 0;
 	
+	String _name;
 	State<C> _initial;
 	final Map<State<C>, List<Transition>> _transitions = new HashMap<>();
 	final Set<State<C>> _stateMap = new HashSet<>();
 	final Set<Predicate<C>> _predMap = new HashSet<>();
+	Frozen _frozen;
+
+	public void setName(String name) {
+		_name = name;
+	}
+
+	@Override
+	public String getName() {
+		return _name;
+	}
 
 	public void setInitial(State<C> state) {
 		_initial = state;
+		_frozen = null;
 	}
 
 	public void addDefaultTransition(State<C> from, State<C> to) {
-		addTransition(from, TIMEOUT, null, to);
+		addDefaultTransition(from, TIMEOUT, to);
+	}
+
+	/*
+		a default transition which is the only transition of its state fires after delay ticks
+	 */
+	public void addDefaultTransition(State<C> from, int delay, State<C> to) {
+		addTransition(from, new Transition(TIMEOUT, null, to, delay));
 	}
 	
 	public void addTransition(State<C> from, Predicate<C> pred, State<C> to) {
@@ -32,15 +52,20 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 	}
 	
 	public void addTransition(State<C> from, int timeout, Predicate<C> pred, State<C> to) {
+		addTransition(from, new Transition(timeout, pred, to, TIMEOUT));
+	}
+
+	private void addTransition(State<C> from, Transition trans) {
 		List<Transition> t = _transitions.get(from);
 		if(t == null) {
 			t = new ArrayList<Transition>();
 			_transitions.put(from, t);
 		}
-		t.add(new Transition(timeout, pred, to));
-		_predMap.add(pred);
+		t.add(trans);
+		_frozen = null;
+		_predMap.add(trans.predicate);
 		_stateMap.add(from);
-		_stateMap.add(to);
+		_stateMap.add(trans.state);
 	}
 	
 	public ITimedAutomata<C> compile(State<C> init) {
@@ -66,12 +91,16 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 		final Map<Predicate<C>, Integer> transIndex = new HashMap<Predicate<C>, Integer>();
 		
 		
+		/*
+			number of states of the compiled automaton: a state with d distinct deadlines is chained to d - 1 new states
+		 */
 		int computeStates() {
 			int nb = _stateMap.size();
 			newNodes = new HashMap<State<C>, List<Next>>(nb);
 			for(State<C> node: _transitions.keySet()) {
 				List<Next> n = nextStates(node);
-				nb += Math.max(n.size() - 2, 0); // FIXME make a smarter method in Next
+				int deadlines = n.size() - 1;
+				nb += Math.max(deadlines - 1, 0);
 				newNodes.put(node, n);
 			}
 			
@@ -104,20 +133,28 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 				Next n = lst.get(size);
 				if(n.deadline == TIMEOUT) {
 					if(n.size() > 0) {
-						if(next == null)
-							System.err.println("States '"+ e.getKey()+"' has only a timeout state !");
-						addTimeout(node, n.states.get(0), next == null ? 0 : next.deadline ); // FIXME does a timeout without alternatives have any sense ?
+						if(next == null) { // a pure delay, nothing to evaluate until it expires
+							transitionPredicates[node] = transitionTarget[node] = new int[0];
+							addTimeout(node, n.states.get(0), Math.max(_transitions.get(e.getKey()).get(0).delay, 1));
+						} else
+							addTimeout(node, n.states.get(0), next.deadline);
 					}
-				} else {
-					for(int i = 0; i < n.size(); i++)
-						addTransitions(node, n);
-				}
+				} else
+					addTransitions(node, n);
 			}
 
-			return new CompiledTimedAutomata<>(mapToStates(nodeIndex), mapToPredicates(transIndex), nodeIndex.get(_initial), transitionPredicates, timeouts, transitionTarget, timeoutTargets);
+			int[] offsets = CompiledTimedAutomata.offsets(nb, transitionPredicates);
+			int[] edges = CompiledTimedAutomata.edges(transitionPredicates, transitionTarget);
+			CompiledTimedAutomata<C> compiled = new CompiledTimedAutomata<>(mapToStates(nodeIndex), mapToPredicates(transIndex), nodeIndex.get(_initial), offsets, edges, timeouts, timeoutTargets);
+			compiled._name = _name;
+			return compiled;
 		}
 		
 		private State<C> newState (final State<C> state, final String suffix) {
+			if(state instanceof ActionListState) {
+				int m = state.getModifier();
+				return new ActionListState<>(state.getName() + suffix, state.getActions(), (m & INITIAL) != 0 ? m - INITIAL : m);
+			}
 			return new State<C>() {
 				@Override
 				public String getName() {
@@ -167,70 +204,75 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 			transitionTarget = new int[size][];
 		}
 		
-		private List<Next> nextStates (State<C> state) {
-			int m;
-			List<Transition> nexts =  new ArrayList<>(_transitions.get(state));
+		/*
+			Split the transitions of state by deadline, each Next holds the guards still alive until its deadline
+			(relative to the previous one), in their original order. The last Next holds what is left once every
+			deadline has expired: the default transition or the infinite guards.
+			The timed guards are sorted once, then the distinct deadlines are swept in order while the alive guards
+			are compacted, so the work is the size of the result plus k log k for k transitions.
+		 */
+		private List<Next> nextStates(State<C> state) {
+			List<Transition> transitions = _transitions.get(state);
+			int k = transitions.size();
+			int[] alive = new int[k];
+			long[] deadlines = new long[k];
+			int nalive = 0, ndeadlines = 0;
+			for(int i = 0; i < k; i ++) {
+				int timeout = transitions.get(i).timeout;
+				if(timeout == Integer.MAX_VALUE)
+					throw new RuntimeException(Integer.MAX_VALUE+" is a reserved timeout value"); // FIXME rewrite without using MAX_VALUE
+				if(timeout != TIMEOUT)
+					alive[nalive ++] = i;
+				if(timeout > TIMEOUT)
+					deadlines[ndeadlines ++] = (long) timeout << 32 | i;
+			}
+			Arrays.sort(deadlines, 0, ndeadlines);
+
 			List<Next> result = new ArrayList<>();
 			int offset = 0;
-			while(true) {
-				m = nextDeadLine(nexts, offset);
-				if(m != Integer.MAX_VALUE) {
-					result.add(selectNextState(m - offset, m, nexts));
-					offset = m;
-				} else {
-					switch(nexts.size()) {
-					case 0:
-						throw new RuntimeException("Automata has no default transition for node: "+ state);
-						//		Next timeout = new Next(TIMEOUT);
-						//		result.add(timeout);
-						//	break;
-					case 1:
-						Transition target = nexts.get(0);
-						Next timeout = new Next(target.timeout);
-						timeout.add(target.state, target.predicate);
-						result.add(timeout);
-						break;
-					default:
-						Next infinites = new Next(INFINITY);
-						for(Transition t: nexts) {
-							if(t.timeout != INFINITY)
-								throw new RuntimeException("Cannot mix timeout alternative and infinite guards, neither having more than a single timeout alternative ('"+state+"': " + nexts + ")");
-							infinites.add(t.state, t.predicate);
-						}
-						result.add(infinites);
-					}
-					break;
-				}
-			}
-			
-			return result;
-		}
-		
-		Next selectNextState(int deadline, int elapsed, List<Transition> nexts) {
-			Next next = new Next(deadline);
-			
-			Iterator<Transition> it = nexts.iterator();
-			while(it.hasNext()) {
-				Transition t = it.next();
-				if(t.timeout != TIMEOUT) {
+			for(int d = 0; d < ndeadlines; ) {
+				int deadline = (int) (deadlines[d] >>> 32);
+				Next next = new Next(deadline - offset, nalive);
+				for(int a = 0; a < nalive; a ++) {
+					Transition t = transitions.get(alive[a]);
 					next.add(t.state, t.predicate);
-					if(t.timeout == elapsed)
-						it.remove();
 				}
+				result.add(next);
+
+				while(d < ndeadlines && (int) (deadlines[d] >>> 32) == deadline)
+					d ++;
+				int n = 0;
+				for(int a = 0; a < nalive; a ++)
+					if(transitions.get(alive[a]).timeout != deadline)
+						alive[n ++] = alive[a];
+				nalive = n;
+				offset = deadline;
 			}
-			return next;
-		}
-		
-		private int nextDeadLine(List<Transition> targets, int min) {
-			int m = Integer.MAX_VALUE;
-			for(Transition t: targets) {
-				if(t.timeout == Integer.MAX_VALUE)
-					throw new RuntimeException(Integer.MAX_VALUE+" is a reserved timeout value"); // FIXME rewrite without using MAX_VALUE
-					
-				if(t.timeout > min)
-					m = Math.min(m, t.timeout);
+
+			List<Transition> nexts = new ArrayList<>();
+			for(Transition t: transitions)
+				if(t.timeout <= TIMEOUT)
+					nexts.add(t);
+			switch(nexts.size()) {
+			case 0:
+				throw new RuntimeException("Automata has no default transition for node: "+ state);
+			case 1:
+				Transition target = nexts.get(0);
+				Next timeout = new Next(target.timeout, 1);
+				timeout.add(target.state, target.predicate);
+				result.add(timeout);
+				break;
+			default:
+				Next infinites = new Next(INFINITY, nexts.size());
+				for(Transition t: nexts) {
+					if(t.timeout != INFINITY)
+						throw new RuntimeException("Cannot mix timeout alternative and infinite guards, neither having more than a single timeout alternative ('"+state+"': " + nexts + ")");
+					infinites.add(t.state, t.predicate);
+				}
+				result.add(infinites);
 			}
-			return m;
+			
+			return result;
 		}
 		
 		private void noTimeout(int state) {
@@ -257,12 +299,67 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 		}
 	}
 	
+	/*
+		index based snapshot of the transitions, shared by the cursors until the automaton is modified
+	 */
+	Frozen freeze() {
+		Frozen frozen = _frozen;
+		if(frozen == null) {
+			if(_initial == null)
+				throw new RuntimeException("Initial state not set");
+			_frozen = frozen = new Frozen();
+		}
+		return frozen;
+	}
+
+	final class Frozen {
+		final State<C>[] states;
+		final Predicate<C>[][] predicates;
+		final int[][] timeouts;
+		final int[][] delays;
+		final int[][] targets;
+		final int initial;
+
+		@SuppressWarnings("unchecked")
+		Frozen() {
+			Map<State<C>, Integer> index = new HashMap<State<C>, Integer>();
+			initial = getIndex(_initial, index);
+			for(State<C> state: _stateMap)
+				getIndex(state, index);
+			states = mapToStates(index);
+
+			int len = states.length;
+			predicates = new Predicate[len][];
+			timeouts = new int[len][];
+			delays = new int[len][];
+			targets = new int[len][];
+			for(int s = 0; s < len; s ++) {
+				List<Transition> trans = _transitions.get(states[s]);
+				int n = trans == null ? 0 : trans.size();
+				predicates[s] = new Predicate[n];
+				timeouts[s] = new int[n];
+				delays[s] = new int[n];
+				targets[s] = new int[n];
+				for(int i = 0; i < n; i ++) {
+					Transition t = trans.get(i);
+					predicates[s][i] = t.predicate;
+					timeouts[s][i] = t.timeout;
+					delays[s][i] = t.delay;
+					targets[s][i] = index.get(t.state);
+				}
+			}
+		}
+	}
+
 	@Override
 	public Cursor<C> start(final ContextProvider<C> context) {
+		final Frozen frozen = freeze();
 		return new Cursor<C>() {
-            State<C> _current;
-            int _currentTime;
-            Predicate<C> _lastValidPredicate;
+			final State<C>[] _states = frozen.states;
+			int _current = frozen.initial;
+			int _currentTime;
+			Predicate<C> _lastValidPredicate;
+			long _fired;
 
 			@Override
 			public ITimedAutomata<C> getAutomata() {
@@ -271,44 +368,68 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 			
 			@Override
 			final public boolean next(ContextProvider<C> provider) {
-				C ctx = context.getContext();
+				return step(provider.getContext());
+			}
+
+			@Override
+			public boolean run(C[] events, int off, int len, RunReport report) {
+				long fired = _fired;
+				int end = off + len, i = off;
+				boolean terminal = false;
+				while(i < end && !terminal)
+					terminal = step(events[i ++]);
+				report.add(i - off, _fired - fired, terminal);
+				return terminal;
+			}
 
+			/*
+				every transition of the state the tick started in is evaluated, even after one has fired
+			 */
+			final boolean step(C ctx) {
+				int current = _current;
+				Predicate<C>[] predicates = frozen.predicates[current];
+				int[] timeouts = frozen.timeouts[current];
+				int[] targets = frozen.targets[current];
 				boolean allexpired = true;
-				State<C> timeoutTarget = null;
-				for(Transition trans: _transitions.get(_current)) {
-					int timeout = trans.timeout;
-					if(timeout == TIMEOUT)
-						timeoutTarget = trans.state;
-					else if (_currentTime < timeout || timeout == INFINITY) {
+				int timeoutTarget = -1;
+				int delay = TIMEOUT;
+				for(int i = 0; i < timeouts.length; i ++) {
+					int timeout = timeouts[i];
+					if(timeout == TIMEOUT) {
+						timeoutTarget = targets[i];
+						delay = frozen.delays[current][i];
+					} else if (_currentTime < timeout || timeout == INFINITY) {
 						allexpired = false;
-						if(trans.predicate.isValid(ctx)) {
-							_lastValidPredicate = trans.predicate;
-                            setState(trans.state, ctx);
+						Predicate<C> predicate = predicates[i];
+						if(predicate.isValid(ctx)) {
+							_lastValidPredicate = predicate;
+							setState(targets[i], ctx);
 						}
 					}
 				}
 
 				_currentTime ++;
 				
-				if(allexpired && timeoutTarget != null)
+				if(allexpired && timeoutTarget != -1 && _currentTime > delay)
 					setState(timeoutTarget, ctx);
 				
-				return (_current.getModifier() & TERMINATE) > 0;
+				return (_states[_current].getModifier() & TERMINATE) > 0;
 			}
 
-            @Override
-            public Predicate<C> getLastValidPredicate() {
-                return _lastValidPredicate;
-            }
+			@Override
+			public Predicate<C> getLastValidPredicate() {
+				return _lastValidPredicate;
+			}
 
-            final public void setState(State<C> target, C context) {
+			final public void setState(int target, C context) {
+				_fired ++;
 				if(_current == target) {
-					target.eachAction(context); // FIXME this is buggy ! (no self loop)
+					_states[target].eachAction(context); // FIXME this is buggy ! (no self loop)
 				} else {
-					_current.postAction(context);
+					_states[_current].postAction(context);
 					_current = target;
 					_currentTime = 0;
-					_current.preAction(context);
+					_states[target].preAction(context);
 				}
 			}
 		};
@@ -343,11 +464,13 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 		final Predicate<C> predicate;
 		final int timeout;
 		final State<C> state;
+		final int delay;
 		
-		Transition(int time, Predicate<C> t, State<C> s) {
+		Transition(int time, Predicate<C> t, State<C> s, int d) {
 			timeout = time;
 			state = s;
 			predicate = t;
+			delay = d;
 		}
 		
 		@Override
@@ -358,11 +481,13 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 	
 	class Next implements Iterable<Entry<State<C>, Predicate<C>>> {
 		final int deadline;
-		ArrayList<State<C>> states = new ArrayList<>();
-		ArrayList<Predicate<C>> trans = new ArrayList<>();
+		final ArrayList<State<C>> states;
+		final ArrayList<Predicate<C>> trans;
 		
-		Next(int t) {
+		Next(int t, int size) {
 			deadline = t;
+			states = new ArrayList<>(size);
+			trans = new ArrayList<>(size);
 		}
 		
 		void add(State<C> s, Predicate<C> t) {
@@ -497,7 +622,7 @@ public class TimedAutomata<C> implements ITimedAutomata<C> {
 
 	@Override
 	final public void setInitialState(State<C> initial) {
-		_initial = initial;
+		setInitial(initial);
 	}
 
 
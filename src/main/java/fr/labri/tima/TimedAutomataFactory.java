@@ -1,22 +1,50 @@
 package fr.labri.tima;
 
+import static fr.labri.Utils.*;
+import static java.nio.file.StandardOpenOption.*;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.SchemaFactory;
+
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.input.SAXBuilder;
 import org.jdom2.input.sax.XMLReaderXSDFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import fr.labri.AutoQualifiedClassLoader;
+import fr.labri.Pair;
 import fr.labri.tima.ITimedAutomata.Action;
 import fr.labri.tima.ITimedAutomata.ContextProvider;
 import fr.labri.tima.ITimedAutomata.Executor;
@@ -51,19 +79,43 @@ public class TimedAutomataFactory<C> {
 	
 	public static final String XMLNS_XSI = "http://www.w3.org/2001/XMLSchema-instance";
 	public static final String XSI_LOCATION = "http://www.labri.fr/~fmoranda/xsd/tima.xsd";
+
+	static final int BINARY_MAGIC = 0x54494D41; // TIMA
+	static final int BINARY_VERSION = 2;
+	static final int MAX_BUFFER = Integer.MAX_VALUE - 8;
 	
 	private final NodeFactory<C> _factory;
 	
-	private final Map<String, Action<C>> _actionMap = new HashMap<String, Action<C>>();
-	private final Map<String, Predicate<C>> _predicateMap = new HashMap<String, Predicate<C>>();
+	private final Map<String, Action<C>> _actionMap = new ConcurrentHashMap<String, Action<C>>();
+	private final Map<String, Predicate<C>> _predicateMap = new ConcurrentHashMap<String, Predicate<C>>();
+	/*
+		_predicateIds and _predicateKeys are only accessed while holding the lock of _predicateIds,
+		_actionKeys while holding its own lock; readers outside them work on the copies of predicateKeys and actionKeys
+	 */
+	private final Map<Predicate<C>, Integer> _predicateIds = new IdentityHashMap<Predicate<C>, Integer>();
+	/*
+		type and attr the predicates and actions have been created from, to write them in binary files
+	 */
+	private final Map<Predicate<C>, Pair<String, String>> _predicateKeys = new IdentityHashMap<>();
+	private final Map<Action<C>, Pair<String, String>> _actionKeys = new IdentityHashMap<>();
 	
 	private final List<ITimedAutomata<C>> _masters = new ArrayList<>();
+	private boolean _parallel;
 
 	public TimedAutomataFactory(NodeFactory<C> factory) {
 		_factory = factory;
 	}
 
 
+	/*
+		Load the automata of a document and compile them for an executor on all cores.
+		The node factory and newState must then be thread safe, predicate ids depend on the scheduling.
+	 */
+	public TimedAutomataFactory<C> parallel(boolean parallel) {
+		_parallel = parallel;
+		return this;
+	}
+
 	public Document parseXML(InputStream stream, boolean validate) throws JDOMException, IOException {
 		SAXBuilder sxb = new SAXBuilder(validate ? new XMLReaderXSDFactory(TimedAutomata.class.getResource("tima.xsd")) : null);
 
@@ -84,8 +136,23 @@ public class TimedAutomataFactory<C> {
 		Map<Element, TimedAutomata<C>> autos = new HashMap<>();
 
 		resolveAutomataName(root.getRootElement(), autosMap, autos);
-		for(Element auto: autosMap.values())
-			loadAutomata(auto, autosMap, autos);
+		if(_parallel) {
+			try {
+				autosMap.values().parallelStream().forEach(auto -> {
+					try {
+						loadAutomata(auto, autosMap, autos);
+					} catch (JDOMException | IOException e) {
+						throw new LoadException(e);
+					}
+				});
+			} catch (LoadException e) {
+				if(e.getCause() instanceof JDOMException)
+					throw (JDOMException) e.getCause();
+				throw (IOException) e.getCause();
+			}
+		} else
+			for(Element auto: autosMap.values())
+				loadAutomata(auto, autosMap, autos);
 		
 		List<ITimedAutomata<C>> res = new ArrayList<>();
 		res.addAll(autos.values());
@@ -94,15 +161,352 @@ public class TimedAutomataFactory<C> {
 		return res;
 	}
 
+	/*
+		load in a single pass without building the document, for files too large for loadXML.
+		The automata are returned in document order, the targets of transitions may be declared after their use.
+	 */
+	public List<ITimedAutomata<C>> streamXML(InputStream stream, boolean validate) throws JDOMException, IOException {
+		XMLHandler handler = new XMLHandler();
+		try {
+			SAXParserFactory spf = SAXParserFactory.newInstance();
+			spf.setNamespaceAware(true);
+			if(validate)
+				spf.setSchema(SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(TimedAutomata.class.getResource("tima.xsd")));
+			spf.newSAXParser().parse(stream, handler);
+		} catch (SAXException e) {
+			if(e.getException() instanceof JDOMException)
+				throw (JDOMException) e.getException();
+			throw new JDOMException(e.getMessage(), e);
+		} catch (ParserConfigurationException e) {
+			throw new JDOMException("Cannot create XML parser", e);
+		}
+		_masters.addAll(handler._loaded);
+		return handler._loaded;
+	}
+
+	/*
+		upper bound of the size of the binary form of automata, in bytes
+	 */
+	public long binarySize(Collection<? extends ITimedAutomata<C>> automata) {
+		return binarySize(compile(automata));
+	}
+
+	private long binarySize(List<CompiledTimedAutomata<C>> automata) {
+		Map<Predicate<C>, Pair<String, String>> predicateKeys = predicateKeys();
+		Map<Action<C>, Pair<String, String>> actionKeys = actionKeys();
+		long size = 4 + 4 * 5 + (predicateKeys.size() + actionKeys.size()) * 2L * (5 + 5);
+		for(Pair<String, String> key: predicateKeys.values())
+			size += symbolSize(key.fst) + symbolSize(key.snd);
+		for(Pair<String, String> key: actionKeys.values())
+			size += symbolSize(key.fst) + symbolSize(key.snd);
+		for(CompiledTimedAutomata<C> compiled: automata) {
+			size += 5 * (3 + compiled._predicates.length) + symbolSize(compiled._name);
+			for(int state = 0; state < compiled._states.length; state ++)
+				size += 5 * (6 + compiled._states[state].getActions().size() + 2 * compiled.transitions(state)) + symbolSize(compiled._states[state].getName());
+		}
+		return size;
+	}
+
+	private Map<Predicate<C>, Pair<String, String>> predicateKeys() {
+		synchronized (_predicateIds) {
+			return new IdentityHashMap<>(_predicateKeys);
+		}
+	}
+
+	private Map<Action<C>, Pair<String, String>> actionKeys() {
+		synchronized (_actionKeys) {
+			return new IdentityHashMap<>(_actionKeys);
+		}
+	}
+
+	private static long symbolSize(String symbol) {
+		return symbol == null ? 5 : 10 + 3L * symbol.length();
+	}
+
+	private static <C> List<CompiledTimedAutomata<C>> compile(Collection<? extends ITimedAutomata<C>> automata) {
+		List<CompiledTimedAutomata<C>> compiled = new ArrayList<>(automata.size());
+		for(ITimedAutomata<C> auto: automata)
+			compiled.add((CompiledTimedAutomata<C>) auto.compile());
+		return compiled;
+	}
+
+	/*
+		Write the compiled tables of automata with a symbol table of state names and of the type and attr of their
+		predicates and actions, which must have been created by this factory, and their states by newState.
+		Integers are varints, -1 as timeout or timeout target is written as a zigzag.
+	 */
+	public ByteBuffer saveBinary(Collection<? extends ITimedAutomata<C>> automata, ByteBuffer out) {
+		return writeBinary(compile(automata), out);
+	}
+
+	private ByteBuffer writeBinary(List<CompiledTimedAutomata<C>> compiled, ByteBuffer out) {
+		Map<Predicate<C>, Pair<String, String>> predicateKeys = predicateKeys();
+		Map<Action<C>, Pair<String, String>> actionKeys = actionKeys();
+		Map<String, Integer> symbols = new LinkedHashMap<>();
+		Map<Predicate<C>, Integer> predicates = new LinkedHashMap<>();
+		Map<Action<C>, Integer> actions = new LinkedHashMap<>();
+		for(CompiledTimedAutomata<C> c: compiled) {
+			symbol(symbols, c._name);
+			for(Predicate<C> p: c._predicates)
+				if(predicates.putIfAbsent(p, predicates.size()) == null)
+					symbols(symbols, key(predicateKeys, p, "Predicate"));
+			for(State<C> state: c._states) {
+				if(!(state instanceof ActionListState))
+					throw new RuntimeException("State cannot be written, it has not been created by newState: " + state.getName());
+				symbol(symbols, state.getName());
+				for(Action<C> a: state.getActions())
+					if(actions.putIfAbsent(a, actions.size()) == null)
+						symbols(symbols, key(actionKeys, a, "Action"));
+			}
+		}
+
+		out.putInt(BINARY_MAGIC);
+		putVarint(out, BINARY_VERSION);
+		putVarint(out, symbols.size());
+		for(String symbol: symbols.keySet()) {
+			byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+			putVarint(out, bytes.length);
+			out.put(bytes);
+		}
+		putVarint(out, predicates.size());
+		for(Predicate<C> p: predicates.keySet())
+			putKey(out, symbols, predicateKeys.get(p));
+		putVarint(out, actions.size());
+		for(Action<C> a: actions.keySet())
+			putKey(out, symbols, actionKeys.get(a));
+
+		putVarint(out, compiled.size());
+		for(CompiledTimedAutomata<C> c: compiled) {
+			putSymbol(out, symbols, c._name);
+			putVarint(out, c._predicates.length);
+			for(Predicate<C> p: c._predicates)
+				putVarint(out, predicates.get(p));
+			putVarint(out, c._states.length);
+			putVarint(out, c._initial);
+			for(int state = 0; state < c._states.length; state ++) {
+				State<C> st = c._states[state];
+				putSymbol(out, symbols, st.getName());
+				putVarint(out, st.getModifier());
+				putVarint(out, st.getActions().size());
+				for(Action<C> a: st.getActions())
+					putVarint(out, actions.get(a));
+				putVarint(out, c.transitions(state));
+				for(int i = 0; i < c.transitions(state); i ++) {
+					putVarint(out, c.predicate(state, i));
+					putVarint(out, c.target(state, i));
+				}
+				putZigzag(out, c._timeouts[state]);
+				putZigzag(out, c._timeoutsTarget[state]);
+			}
+		}
+		return out;
+	}
+
+	/*
+		the automata are written to a heap buffer first, grown if they do not fit in binarySize
+	 */
+	public void saveBinary(Collection<? extends ITimedAutomata<C>> automata, Path file) throws IOException {
+		List<CompiledTimedAutomata<C>> compiled = compile(automata);
+		ByteBuffer out = ByteBuffer.allocate((int) Math.min(binarySize(compiled), MAX_BUFFER));
+		for(;;) {
+			try {
+				writeBinary(compiled, out);
+				break;
+			} catch (BufferOverflowException e) {
+				if(out.capacity() == MAX_BUFFER)
+					throw new IOException("Automata are too large to be saved", e);
+				out = ByteBuffer.allocate((int) Math.min(2L * out.capacity(), MAX_BUFFER));
+			}
+		}
+		out.flip();
+		try (FileChannel channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+			while(out.hasRemaining())
+				channel.write(out);
+		}
+	}
+
+	/*
+		Read automata written by saveBinary, their predicates and actions are created (or shared) through getPredicate
+		and getAction, their states through newState. The automata are compiled and returned in the order they were saved.
+		A corrupt or truncated buffer fails with an IllegalArgumentException.
+	 */
+	public List<ITimedAutomata<C>> loadBinary(ByteBuffer in) {
+		try {
+			return readBinary(in);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated binary automata", e);
+		}
+	}
+
+	private List<ITimedAutomata<C>> readBinary(ByteBuffer in) {
+		if(in.getInt() != BINARY_MAGIC)
+			throw new IllegalArgumentException("Not a binary automata file");
+		int version = getVarint(in);
+		if(version != BINARY_VERSION)
+			throw new IllegalArgumentException("Unsupported binary automata version: " + version);
+		String[] symbols = new String[count(in, "symbols") + 1];
+		for(int i = 1; i < symbols.length; i ++) {
+			byte[] bytes = new byte[count(in, "symbol bytes")];
+			in.get(bytes);
+			symbols[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		@SuppressWarnings("unchecked")
+		Predicate<C>[] predicates = new Predicate[count(in, "predicates")];
+		for(int i = 0; i < predicates.length; i ++) {
+			String type = type(in, symbols);
+			String attr = symbols[index(in, symbols.length, "symbol")];
+			if((predicates[i] = getPredicate(type, attr)) == null)
+				throw new RuntimeException("Unable to create predicate : " + type +"(" + attr+")");
+		}
+		@SuppressWarnings("unchecked")
+		Action<C>[] actions = new Action[count(in, "actions")];
+		for(int i = 0; i < actions.length; i ++)
+			actions[i] = getAction(type(in, symbols), symbols[index(in, symbols.length, "symbol")]);
+
+		List<ITimedAutomata<C>> res = new ArrayList<>();
+		for(int n = count(in, "automata"); n > 0; n --) {
+			String name = symbols[index(in, symbols.length, "symbol")];
+			@SuppressWarnings("unchecked")
+			Predicate<C>[] preds = new Predicate[count(in, "predicates")];
+			for(int i = 0; i < preds.length; i ++)
+				preds[i] = predicates[index(in, predicates.length, "predicate")];
+			int len = count(in, "states");
+			int initial = index(in, len, "initial state");
+			@SuppressWarnings("unchecked")
+			State<C>[] states = new State[len];
+			int[] offsets = new int[len + 1], edges = new int[2 * len];
+			int[] timeouts = new int[len], timeoutsTarget = new int[len];
+			for(int state = 0; state < len; state ++) {
+				String stateName = symbols[index(in, symbols.length, "symbol")];
+				int modifiers = getVarint(in);
+				ArrayList<Action<C>> acts = new ArrayList<>();
+				for(int a = count(in, "actions"); a > 0; a --)
+					acts.add(actions[index(in, actions.length, "action")]);
+				states[state] = newState(stateName, acts, modifiers);
+				int transitions = count(in, "transitions");
+				offsets[state + 1] = offsets[state] + transitions;
+				if(2 * offsets[state + 1] > edges.length)
+					edges = Arrays.copyOf(edges, Math.max(2 * edges.length, 2 * offsets[state + 1]));
+				for(int e = offsets[state]; e < offsets[state + 1]; e ++) {
+					edges[2 * e] = index(in, preds.length, "predicate");
+					edges[2 * e + 1] = index(in, len, "target state");
+				}
+				timeouts[state] = getZigzag(in);
+				timeoutsTarget[state] = getZigzag(in);
+				if(timeoutsTarget[state] < -1 || timeoutsTarget[state] >= len)
+					throw new IllegalArgumentException("Invalid timeout target state index in binary automata: " + timeoutsTarget[state]);
+			}
+			CompiledTimedAutomata<C> auto = new CompiledTimedAutomata<>(states, preds, initial, offsets, Arrays.copyOf(edges, 2 * offsets[len]), timeouts, timeoutsTarget);
+			auto._name = name;
+			res.add(auto);
+		}
+		_masters.addAll(res);
+		return res;
+	}
+
+	/*
+		index into a table of length elements
+	 */
+	private static int index(ByteBuffer in, int length, String kind) {
+		int index = getVarint(in);
+		if(index < 0 || index >= length)
+			throw new IllegalArgumentException("Invalid " + kind + " index in binary automata: " + index);
+		return index;
+	}
+
+	/*
+		number of elements to read, each of them takes at least a byte
+	 */
+	private static int count(ByteBuffer in, String kind) {
+		int count = getVarint(in);
+		if(count < 0 || count > in.remaining())
+			throw new IllegalArgumentException("Invalid number of " + kind + " in binary automata: " + count);
+		return count;
+	}
+
+	private static String type(ByteBuffer in, String[] symbols) {
+		String type = symbols[index(in, symbols.length, "symbol")];
+		if(type == null)
+			throw new IllegalArgumentException("Missing type in binary automata");
+		return type;
+	}
+
+	public List<ITimedAutomata<C>> loadBinary(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, READ)) {
+			return loadBinary(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private static <T> Pair<String, String> key(Map<T, Pair<String, String>> keys, T node, String kind) {
+		Pair<String, String> key = keys.get(node);
+		if(key == null)
+			throw new RuntimeException(kind + " cannot be written, it has not been created by this factory: " + node);
+		return key;
+	}
+
+	private static void symbol(Map<String, Integer> symbols, String symbol) {
+		if(symbol != null)
+			symbols.putIfAbsent(symbol, symbols.size() + 1);
+	}
+
+	private static void symbols(Map<String, Integer> symbols, Pair<String, String> key) {
+		symbol(symbols, key.fst);
+		symbol(symbols, key.snd);
+	}
+
+	/*
+		0 stands for null
+	 */
+	private static void putSymbol(ByteBuffer out, Map<String, Integer> symbols, String symbol) {
+		putVarint(out, symbol == null ? 0 : symbols.get(symbol));
+	}
+
+	private static void putKey(ByteBuffer out, Map<String, Integer> symbols, Pair<String, String> key) {
+		putSymbol(out, symbols, key.fst);
+		putSymbol(out, symbols, key.snd);
+	}
+
 	final public Executor<C> getExecutor(ContextProvider<C> provider) {
 		return getExecutor(provider, true);
 	}
 
 	public Executor<C> getExecutor(ContextProvider<C> provider, boolean compiled) {
+		return getExecutor(provider, compiled, false);
+	}
+
+	/*
+		memoize: evaluate each guard at most once per tick across all the automata of this factory
+	 */
+	public Executor<C> getExecutor(ContextProvider<C> provider, boolean compiled, boolean memoize) {
 		List<ITimedAutomata<C>> masters = compiled
-            ? _masters.stream().map(m -> m.compile()).collect(Collectors.toList())
+            ? (_parallel ? _masters.parallelStream() : _masters.stream()).map(m -> bindPredicates(m.compile())).collect(Collectors.toList())
             : _masters;
-		return new BasicExecutor<>(provider, masters).start();
+		BasicExecutor<C> executor = new BasicExecutor<>(provider, masters);
+		if(memoize)
+			executor.memoize(predicateCount());
+		return executor.start();
+	}
+
+	private ITimedAutomata<C> bindPredicates(ITimedAutomata<C> auto) {
+		if(auto instanceof CompiledTimedAutomata)
+			((CompiledTimedAutomata<C>) auto).bindPredicates(this::getPredicateId);
+		return auto;
+	}
+
+	/*
+		global id of a predicate created by this factory, -1 if unknown
+	 */
+	public int getPredicateId(Predicate<C> predicate) {
+		synchronized (_predicateIds) {
+			Integer id = _predicateIds.get(predicate);
+			return id == null ? -1 : id;
+		}
+	}
+
+	private int predicateCount() {
+		synchronized (_predicateIds) {
+			return _predicateIds.size();
+		}
 	}
 	
 	protected void resolveAutomataName(Element auto, Map<String, Element> autosMap, Map<Element, TimedAutomata<C>> autos) {
@@ -111,11 +515,13 @@ public class TimedAutomataFactory<C> {
 		if(name == null)
 			throw new RuntimeException("Automata has no name: " + auto.toString());
 		
-		if(autos.containsKey(name))
+		if(autosMap.containsKey(name))
 			throw new RuntimeException("There is more than one automata with the name: " + name);
 
 		autosMap.put(name, auto);
-		autos.put(auto, new TimedAutomata<C>());
+		TimedAutomata<C> automata = new TimedAutomata<C>();
+		automata.setName(name);
+		autos.put(auto, automata);
 		
 		for(Element sub: auto.getChildren(AUTOMATA_TAG))
 			resolveAutomataName(sub, autosMap, autos);
@@ -158,7 +564,13 @@ public class TimedAutomataFactory<C> {
 			Element timeout = srcElt.getChild(TIMEOUT_TAG);
 			if(timeout != null) {
 				State<C> dest = stateMap.get(transMap.get(timeout));
-				auto.addDefaultTransition(src, dest);
+				String delay = timeout.getAttributeValue(TRANSITION_TIMEOUT_TAG);
+				if(delay == null)
+					auto.addDefaultTransition(src, dest);
+				else if(srcElt.getChildren(TRANSITION_TAG).isEmpty())
+					auto.addDefaultTransition(src, Integer.parseInt(delay), dest);
+				else
+					throw new RuntimeException("Only a default transition without alternatives can have a timeout in: " + entry.getKey().getAttributeValue(STATE_NAME_TAG));
 			} 
 		}
 	}
@@ -216,40 +628,7 @@ public class TimedAutomataFactory<C> {
 	}
 
 	protected State<C> newState(final String name, final ArrayList<Action<C>> actions, final int modifiers) {
-		return new State<C>() {
-			@Override
-			public String getName() {
-				return name;
-			}
-
-			@Override
-			public List<Action<C>> getActions() {
-				return actions;
-			}
-
-			@Override
-			public int getModifier() {
-				return modifiers;
-			}
-
-			@Override
-			public void preAction(C context) {
-				for (Action<C> action : getActions())
-					action.preAction(context);
-			}
-
-			@Override
-			public void eachAction(C context) {
-				for (Action<C> action : getActions())
-					action.eachAction(context);
-			}
-
-			@Override
-			public void postAction(C context) {
-				for (Action<C> action : getActions())
-					action.postAction(context);
-			}
-		};
+		return new ActionListState<>(name, actions, modifiers);
 	}
 	
 	protected void resolveTransitions(Element root, Map<String, Element> stateMap, Map<Element, Element> transMap) {
@@ -301,16 +680,225 @@ public class TimedAutomataFactory<C> {
 		return initial;
 	}
 	
+	/**
+	 * Builds the automata while parsing, with the same checks as loadXML.
+	 *
+	 * A state is built at the end of its element. Its transitions are added at once when all their targets are known,
+	 * otherwise they are kept until the end of the automaton: only the states with forward references stay in memory.
+	 */
+	class XMLHandler extends DefaultHandler {
+		final List<ITimedAutomata<C>> _loaded = new ArrayList<>();
+		final Set<String> _names = new HashSet<>();
+		final ArrayDeque<AutomatonBuilder> _automata = new ArrayDeque<>();
+		StateBuilder _state;
+		int _skipped;
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+			if(_skipped > 0) {
+				_skipped ++;
+			} else if(_state != null) {
+				_state.child(localName, attributes);
+				_skipped = 1;
+			} else if(_automata.isEmpty() || AUTOMATA_TAG.equals(localName)) {
+				_automata.push(new AutomatonBuilder(attributes.getValue(AUTOMATA_NAME_TAG)));
+			} else if(STATE_TAG.equals(localName)) {
+				_state = new StateBuilder(attributes);
+			} else
+				_skipped = 1;
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if(_skipped > 0) {
+				_skipped --;
+			} else if(_state != null) {
+				_automata.peek().add(_state);
+				_state = null;
+			} else
+				_automata.pop().finish();
+		}
+
+		@Override
+		public void error(SAXParseException e) throws SAXException {
+			throw e;
+		}
+
+		class AutomatonBuilder {
+			final String _name;
+			final TimedAutomata<C> _auto = new TimedAutomata<>();
+			final Map<String, State<C>> _states = new HashMap<>();
+			final List<StateBuilder> _pending = new ArrayList<>();
+			State<C> _initial;
+
+			AutomatonBuilder(String name) {
+				if(name == null)
+					throw new RuntimeException("Automata has no name: " + AUTOMATA_TAG);
+				if(!_names.add(name))
+					throw new RuntimeException("There is more than one automata with the name: " + name);
+				_name = name;
+				_auto.setName(name);
+				_loaded.add(_auto);
+			}
+
+			void add(StateBuilder state) throws SAXException {
+				State<C> st = state.build();
+				if(_states.put(state._name, st) != null)
+					throw new SAXException(new JDOMException("Node name is not unique: "+ state._name));
+				if(hasModifier(st.getModifier(), ITimedAutomata.INITIAL)) {
+					if(_initial != null)
+						throw new TimaException.InitialStateException("More than one initial state in " + _name + ": '"+_initial.getName()+"', '"+state._name+"'");
+					_initial = st;
+				}
+				if(state.resolved(_states))
+					link(state);
+				else
+					_pending.add(state);
+			}
+
+			void finish() {
+				for(StateBuilder state: _pending)
+					link(state);
+				if(_initial == null)
+					throw new TimaException.InitialStateException(_name + " automata has no initial state");
+				_auto.setInitial(_initial);
+			}
+
+			private void link(StateBuilder state) {
+				for(Path path: state._paths) {
+					State<C> dest = _states.get(path._target);
+					if(dest == null)
+						throw new RuntimeException("Target does not exists in '" + _name + "': " + path._target);
+					_auto.addTransition(state._built, path._timeout, path._predicate, dest);
+				}
+				if(state._default != null) {
+					State<C> dest = _states.get(state._default);
+					if(dest == null)
+						throw new RuntimeException("Timeout target does not exists in '" + _name + "/"+state._name+"': " + state._default);
+					if(state._delay == null)
+						_auto.addDefaultTransition(state._built, dest);
+					else
+						_auto.addDefaultTransition(state._built, Integer.parseInt(state._delay), dest);
+				}
+			}
+		}
+
+		class StateBuilder {
+			final String _name;
+			final String _action, _attr, _initial, _terminal, _urgent;
+			final ArrayList<Action<C>> _actions = new ArrayList<>();
+			final List<Path> _paths = new ArrayList<>();
+			boolean _terminated, _infinite;
+			String _default, _delay;
+			State<C> _built;
+
+			StateBuilder(Attributes attributes) {
+				_name = attributes.getValue(STATE_NAME_TAG);
+				_action = attributes.getValue(ACTION_TAG);
+				_attr = attributes.getValue(ACTION_ATTR_TAG);
+				_initial = attributes.getValue(STATE_INITIAL_TAG);
+				_terminal = attributes.getValue(STATE_TERMINAL_TAG);
+				_urgent = attributes.getValue(STATE_URGENT_TAG);
+			}
+
+			void child(String tag, Attributes attributes) {
+				if(_terminated)
+					throw new RuntimeException("Unreachable code, actions after terminate in " + _name);
+				if(ACTION_TAG.equalsIgnoreCase(tag)) {
+					Action<C> a = getAction(attributes.getValue(ACTION_NAME_TAG), attributes.getValue(ACTION_ATTR_TAG));
+					if(a == null)
+						throw new RuntimeException("Unable to create action : " + attributes.getValue(ACTION_NAME_TAG) +"(" + attributes.getValue(ACTION_ATTR_TAG)+")");
+					_actions.add(a);
+				} else if(TERMINATE_TAG.equalsIgnoreCase(tag)) {
+					_terminated = true;
+				} else if(TRANSITION_TAG.equalsIgnoreCase(tag)) {
+					String pred = attributes.getValue(TRANSITION_PREDICATE_TAG);
+					String timeoutval = attributes.getValue(TRANSITION_TIMEOUT_TAG);
+					String attr = attributes.getValue(TRANSITION_ATTR_TAG);
+					Predicate<C> predicate = getPredicate(pred, attr);
+					if(predicate == null)
+						throw new RuntimeException("Unable to create predicate : " + pred +"(" + attr+")");
+					int timeout = (timeoutval == null) ? TimedAutomata.INFINITY : Integer.parseInt(timeoutval);
+					_infinite |= timeoutval != null && timeout == TimedAutomata.INFINITY;
+					_paths.add(new Path(attributes.getValue(TRANSITION_TARGET_TAG), timeout, predicate));
+				} else if(TIMEOUT_TAG.equalsIgnoreCase(tag)) {
+					if(_default != null)
+						throw new RuntimeException("State '"+_name+"' has more than one timeout");
+					_default = attributes.getValue(TRANSITION_TARGET_TAG);
+					_delay = attributes.getValue(TRANSITION_TIMEOUT_TAG);
+					if(_default == null)
+						throw new RuntimeException("Timeout without target in: " + _name);
+				} else
+					throw new RuntimeException("Unknwown tag: " + tag);
+			}
+
+			State<C> build() {
+				if(_action != null) {
+					Action<C> a = getAction(_action, _attr);
+					if(a != null)
+						_actions.add(a);
+				} else if(_attr != null)
+					throw new RuntimeException("Attribue without action in state: "+ _name);
+
+				if("true".equalsIgnoreCase(_terminal))
+					if(_terminated)
+						throw new RuntimeException("More than one terminate in " + _name);
+					else
+						_terminated = true;
+
+				if(_default != null && _infinite)
+					throw new RuntimeException("Cannot mix timeout and infinite guars in: "+ _name);
+				if(_delay != null && !_paths.isEmpty())
+					throw new RuntimeException("Only a default transition without alternatives can have a timeout in: " + _name);
+
+				int modifiers = ("true".equalsIgnoreCase(_urgent) ? ITimedAutomata.URGENT : 0)
+						| ("true".equalsIgnoreCase(_initial) ? ITimedAutomata.INITIAL : 0)
+						| (_terminated ? ITimedAutomata.TERMINATE : 0);
+				return _built = newState(_name, _actions, modifiers);
+			}
+
+			boolean resolved(Map<String, State<C>> states) {
+				for(Path path: _paths)
+					if(!states.containsKey(path._target))
+						return false;
+				return _default == null || states.containsKey(_default);
+			}
+		}
+
+		class Path {
+			final String _target;
+			final int _timeout;
+			final Predicate<C> _predicate;
+
+			Path(String target, int timeout, Predicate<C> predicate) {
+				_target = target;
+				_timeout = timeout;
+				_predicate = predicate;
+			}
+		}
+	}
+
+	/*
+		carries the checked exceptions of the parallel loading out of the stream
+	 */
+	private static final class LoadException extends RuntimeException {
+		LoadException(Exception cause) {
+			super(cause);
+		}
+	}
+
 	protected Action<C> getAction(final String type, final String attr) {
 		if(type == null) return null;
 		String name = type + ((attr == null ) ? "" : (":"+attr)); 
-		if(_actionMap.containsKey(name))
-			return _actionMap.get(name);
-		Action<C> act = _factory.newAction(type, attr);
-		if(act == null)
-			throw new RuntimeException("Unable to create default action : " + name);
-		_actionMap.put(name, act);
-		return act;
+		return _actionMap.computeIfAbsent(name, n -> {
+			Action<C> act = _factory.newAction(type, attr);
+			if(act == null)
+				throw new RuntimeException("Unable to create default action : " + n);
+			synchronized (_actionKeys) {
+				_actionKeys.putIfAbsent(act, Pair.of(type, attr));
+			}
+			return act;
+		});
 	}
 	
 	public static final boolean hasModifier(int modifiers, int modifier) {
@@ -319,11 +907,17 @@ public class TimedAutomataFactory<C> {
 	
 	protected Predicate<C> getPredicate(String type, String attr) {
 		String name = type + ((attr == null ) ? "" : (":"+attr));
-		if(_predicateMap.containsKey(name))
-			return _predicateMap.get(name);
-		Predicate<C> t = _factory.newPredicate(name, attr);
-		_predicateMap.put(name, t);
-		return t;
+		return _predicateMap.computeIfAbsent(name, n -> {
+			Predicate<C> t = _factory.newPredicate(n, attr);
+			if(t != null)
+				synchronized (_predicateIds) {
+					if(!_predicateIds.containsKey(t)) {
+						_predicateIds.put(t, _predicateIds.size());
+						_predicateKeys.put(t, Pair.of(type, attr));
+					}
+				}
+			return t;
+		});
 	}
 	
 	protected int getModifierFromNode(Element state) {
@@ -0,0 +1,145 @@
+package fr.labri.tima;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel (Varghese &amp; Lauck).
+ *
+ * Four levels of 256 slots cover 2^32 ticks, farther deadlines wait in an overflow list.
+ * Scheduling and cancelling are O(1), advancing by one tick is O(1) amortized plus the expired items. Timer nodes are recycled:
+ * a timer must not be cancelled once its item has been handed back.
+ */
+public class TimingWheel<T> {
+	static final int BITS = 8;
+	static final int SLOTS = 1 << BITS;
+	static final int MASK = SLOTS - 1;
+	static final int LEVELS = 4;
+
+	final Timer<T>[][] _wheels;
+	Timer<T> _overflow;
+	Timer<T> _free;
+	long _now;
+	int _size;
+
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long now) {
+		_wheels = new Timer[LEVELS][SLOTS];
+		_now = now;
+	}
+
+	public long now() {
+		return _now;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/*
+		item will be handed back by the advance() reaching expiry, unless the returned timer is cancelled before
+	 */
+	public Timer<T> schedule(T item, long expiry) {
+		if(expiry <= _now)
+			throw new IllegalArgumentException("Deadline " + expiry + " is not after " + _now);
+		Timer<T> t = _free;
+		if(t == null)
+			t = new Timer<>();
+		else
+			_free = t._next;
+		t._item = item;
+		t._expiry = expiry;
+		insert(t);
+		_size ++;
+		return t;
+	}
+
+	public void cancel(Timer<T> t) {
+		Timer<T> next = t._next, prev = t._prev;
+		if(prev != null)
+			prev._next = next;
+		else if(t._level == LEVELS)
+			_overflow = next;
+		else
+			_wheels[t._level][(int) (t._expiry >>> (BITS * t._level)) & MASK] = next;
+		if(next != null)
+			next._prev = prev;
+		t._item = null;
+		t._prev = null;
+		t._next = _free;
+		_free = t;
+		_size --;
+	}
+
+	public void advance(long now, Consumer<? super T> expired) {
+		while(_now < now) {
+			long tick = ++ _now;
+			if((tick & ((1L << (BITS * LEVELS)) - 1)) == 0) {
+				Timer<T> t = _overflow;
+				_overflow = null;
+				reinsert(t);
+			}
+			for(int level = LEVELS - 1; level > 0; level --)
+				if((tick & ((1L << (BITS * level)) - 1)) == 0) {
+					Timer<T>[] wheel = _wheels[level];
+					int slot = (int) (tick >>> (BITS * level)) & MASK;
+					Timer<T> t = wheel[slot];
+					wheel[slot] = null;
+					reinsert(t);
+				}
+
+			Timer<T>[] wheel = _wheels[0];
+			int slot = (int) tick & MASK;
+			Timer<T> t = wheel[slot];
+			wheel[slot] = null;
+			while(t != null) {
+				Timer<T> next = t._next;
+				T item = t._item;
+				t._item = null;
+				t._next = _free;
+				_free = t;
+				_size --;
+				expired.accept(item);
+				t = next;
+			}
+		}
+	}
+
+	private void reinsert(Timer<T> t) {
+		while(t != null) {
+			Timer<T> next = t._next;
+			insert(t);
+			t = next;
+		}
+	}
+
+	private void insert(Timer<T> t) {
+		long delta = t._expiry - _now;
+		int level = 0;
+		while(level < LEVELS && delta >= 1L << (BITS * (level + 1)))
+			level ++;
+		t._level = level;
+		t._prev = null;
+		if(level == LEVELS) {
+			t._next = _overflow;
+			_overflow = t;
+		} else {
+			Timer<T>[] wheel = _wheels[level];
+			int slot = (int) (t._expiry >>> (BITS * level)) & MASK;
+			t._next = wheel[slot];
+			wheel[slot] = t;
+		}
+		if(t._next != null)
+			t._next._prev = t;
+	}
+
+	/*
+		node of the doubly linked list of a slot, or of the overflow list if its level is LEVELS
+	 */
+	public static final class Timer<T> {
+		T _item;
+		long _expiry;
+		int _level;
+		Timer<T> _prev;
+		Timer<T> _next;
+	}
+}
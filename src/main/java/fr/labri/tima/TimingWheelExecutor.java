@@ -0,0 +1,79 @@
+package fr.labri.tima;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import fr.labri.tima.ITimedAutomata.ContextProvider;
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.Executor;
+
+/**
+ * Executor parking idle cursors in a {@link TimingWheel}.
+ *
+ * A cursor is idle when its state has no guard and only waits for its timeout. Instead of being stepped on every tick
+ * to count down, it leaves the active cursors until the tick its timeout fires. Hence an idle state does not receive
+ * <code>eachAction</code> while its cursor is parked, every other callback happens on the same tick as with a {@link BasicExecutor}.
+ */
+public class TimingWheelExecutor<C> implements Executor<C> {
+	final Collection<ITimedAutomata<C>> _automatas;
+	final ContextProvider<C> _context;
+	final CompiledTimedAutomata<C>.CompiledCursor[] _all;
+	final CompiledTimedAutomata<C>.CompiledCursor[] _active;
+	final TimingWheel<CompiledTimedAutomata<C>.CompiledCursor> _wheel = new TimingWheel<>(0);
+	int _alive;
+	long _now;
+
+	@SuppressWarnings("unchecked")
+	public TimingWheelExecutor(ContextProvider<C> context, Collection<ITimedAutomata<C>> automatas) {
+		_context = context;
+		_automatas = automatas;
+		_all = new CompiledTimedAutomata.CompiledCursor[automatas.size()];
+		_active = new CompiledTimedAutomata.CompiledCursor[automatas.size()];
+	}
+
+	@Override
+	public TimingWheelExecutor<C> start() {
+		int i = 0;
+		for (ITimedAutomata<C> automata : _automatas) {
+			Cursor<C> cursor = automata.compile().start(_context);
+			if (!(cursor instanceof CompiledTimedAutomata.CompiledCursor))
+				throw new IllegalArgumentException("Timing wheels require compiled automata: " + automata.getClass().getName());
+			_all[i ++] = (CompiledTimedAutomata<C>.CompiledCursor) cursor;
+		}
+		System.arraycopy(_all, 0, _active, 0, i);
+		_alive = i;
+		return this;
+	}
+
+	@Override
+	public boolean next() {
+		_wheel.advance(++ _now, this::wake);
+		for (int i = 0; i < _alive;) {
+			CompiledTimedAutomata<C>.CompiledCursor cursor = _active[i];
+			int idle;
+			if (cursor.next(_context)) {
+				_active[i] = _active[-- _alive];
+			} else if ((idle = cursor.idleTimeout()) > 0) {
+				_wheel.schedule(cursor, _now + idle);
+				_active[i] = _active[-- _alive];
+			} else
+				i ++;
+		}
+		return _alive + _wheel.size() > 0;
+	}
+
+	private void wake(CompiledTimedAutomata<C>.CompiledCursor cursor) {
+		cursor.skipToTimeout();
+		_active[_alive ++] = cursor;
+	}
+
+	public int getParked() {
+		return _wheel.size();
+	}
+
+	@Override
+	public Collection<Cursor<C>> getCursors() {
+		return Collections.unmodifiableCollection(Arrays.<Cursor<C>>asList(_all));
+	}
+}
@@ -8,7 +8,7 @@ import java.util.Collection;
 
 public class Example {
 
-    static class CharPredicate implements ITimedAutomata.Predicate<Character> {
+    static class CharPredicate implements ITimedAutomata.IndexablePredicate<Character> {
         final char letter;
 
         CharPredicate(char c) {
@@ -24,6 +24,11 @@ public class Example {
         public String getType() {
             return Character.toString(letter);
         }
+
+        @Override
+        public Object getKey() {
+            return letter;
+        }
     }
 
     static class PrintAction implements ITimedAutomata.Action<Character> {
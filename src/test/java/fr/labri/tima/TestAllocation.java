@@ -0,0 +1,41 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.RunReport;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class TestAllocation {
+    static final int STEPS = 1 << 16;
+
+    @Test
+    public void testInterpretedStep() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        Character[] events = new Character[4096];
+        for (int i = 0; i < events.length; i++)
+            events[i] = (char) ('a' + i * 7 % 26);
+        Cursor<Character> cursor = TestGuardIndex.automata().start(null);
+        RunReport report = new RunReport();
+        cursor.run(events, 0, 1, report); // not warmed up: the interpreter does not eliminate allocations
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        run(cursor, events, report);
+        long bytes = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(report.transitions > 0);
+        assertEquals("B/op", 0, bytes / STEPS);
+    }
+
+    private static void run(Cursor<Character> cursor, Character[] events, RunReport report) {
+        for (int n = 0; n < STEPS; n += events.length)
+            assertFalse(cursor.run(events, 0, events.length, report));
+    }
+}
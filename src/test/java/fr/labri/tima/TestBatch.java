@@ -0,0 +1,81 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.ContextProvider;
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.RunReport;
+import fr.labri.tima.ITimedAutomata.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestBatch {
+    static final Character[] EVENTS = {'x', 'a', 'a', 'b', 'a', 'b'};
+
+    static TimedAutomata<Character> abAutomata() {
+        TimedAutomataFactory<Character> factory = new TimedAutomataFactory<>(null);
+        State<Character> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+        State<Character> s1 = factory.newState("s1", new ArrayList<>(), 0);
+        State<Character> end = factory.newState("end", new ArrayList<>(), ITimedAutomata.TERMINATE);
+
+        TimedAutomata<Character> auto = new TimedAutomata<>();
+        auto.addTransition(s0, new Example.CharPredicate('a'), s1);
+        auto.addTransition(s1, new Example.CharPredicate('b'), end);
+        auto.addTransition(s1, new Example.CharPredicate('a'), s1);
+        auto.setInitial(s0);
+        return auto;
+    }
+
+    @Test
+    public void testInterpretedRun() {
+        assertRun(abAutomata());
+    }
+
+    @Test
+    public void testCompiledRun() {
+        assertRun(abAutomata().compile());
+    }
+
+    @Test
+    public void testExecutorFeed() {
+        List<ITimedAutomata<Character>> autos = Arrays.asList(abAutomata(), abAutomata().compile());
+        BasicExecutor<Character> executor = new BasicExecutor<>(() -> 'x', autos).start();
+
+        RunReport report = executor.feed(Arrays.asList(EVENTS));
+        assertEquals(8, report.steps);
+        assertEquals(6, report.transitions);
+        assertEquals(2, report.terminated);
+        assertFalse(executor.next());
+    }
+
+    @Test
+    public void testInitialStateAfterStart() {
+        TimedAutomata<Character> auto = abAutomata();
+        assertFalse(auto.start(null).next(provider('b')));
+        State<Character> s1 = auto.getFollowers(auto.getInitialState())[0];
+        auto.setInitialState(s1);
+        assertTrue(auto.start(null).next(provider('b')));
+    }
+
+    private void assertRun(ITimedAutomata<Character> auto) {
+        Cursor<Character> stepped = auto.start(null);
+        int steps = 0;
+        while (!stepped.next(provider(EVENTS[steps])))
+            steps ++;
+
+        RunReport report = new RunReport();
+        Cursor<Character> batched = auto.start(null);
+        assertTrue(batched.run(EVENTS, 0, EVENTS.length, report));
+        assertEquals(steps + 1, report.steps);
+        assertEquals(3, report.transitions);
+        assertEquals(1, report.terminated);
+        assertEquals(stepped.getLastValidPredicate(), batched.getLastValidPredicate());
+    }
+
+    private static ContextProvider<Character> provider(Character c) {
+        return () -> c;
+    }
+}
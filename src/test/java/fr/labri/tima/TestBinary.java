@@ -0,0 +1,77 @@
+package fr.labri.tima;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestBinary {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        TimedAutomataFactory<Void> factory = new TimedAutomataFactory<>(new SimpleNodeFactory<>());
+        List<ITimedAutomata<Void>> compiled = new ArrayList<>();
+        for (ITimedAutomata<Void> auto : factory.streamXML(TestUtils.getInputStream("/ex3.xml"), false))
+            compiled.add(auto.compile());
+        Path file = folder.newFile().toPath();
+        factory.saveBinary(compiled, file);
+
+        TimedAutomataFactory<Void> other = new TimedAutomataFactory<>(new SimpleNodeFactory<>());
+        List<ITimedAutomata<Void>> loaded = other.loadBinary(file);
+        assertEquals(compiled.size(), loaded.size());
+        assertEquals(TestStreaming.describe(compiled), TestStreaming.describe(loaded));
+        for (int i = 0; i < compiled.size(); i++) {
+            CompiledTimedAutomata<Void> expected = (CompiledTimedAutomata<Void>) compiled.get(i);
+            CompiledTimedAutomata<Void> actual = (CompiledTimedAutomata<Void>) loaded.get(i);
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected._initial, actual._initial);
+            assertArrayEquals(expected._offsets, actual._offsets);
+            assertArrayEquals(expected._edges, actual._edges);
+            assertArrayEquals(expected._timeouts, actual._timeouts);
+            assertArrayEquals(expected._timeoutsTarget, actual._timeoutsTarget);
+            for (int p = 0; p < expected._predicates.length; p++)
+                assertEquals(expected._predicates[p].getType(), actual._predicates[p].getType());
+        }
+
+        CompiledTimedAutomata<Void> again = (CompiledTimedAutomata<Void>) other.loadBinary(file).get(0);
+        assertSame(((CompiledTimedAutomata<Void>) loaded.get(0))._predicates[0], again._predicates[0]);
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        TimedAutomataFactory<Void> factory = new TimedAutomataFactory<>(new SimpleNodeFactory<>());
+        List<ITimedAutomata<Void>> automata = factory.streamXML(TestUtils.getInputStream("/ex3.xml"), false);
+        ByteBuffer saved = factory.saveBinary(automata, ByteBuffer.allocate((int) factory.binarySize(automata)));
+        saved.flip();
+
+        TimedAutomataFactory<Void> other = new TimedAutomataFactory<>(new SimpleNodeFactory<>());
+        for (int len = 0; len < saved.limit(); len++) {
+            ByteBuffer truncated = saved.duplicate();
+            truncated.limit(len);
+            try {
+                other.loadBinary(truncated);
+                fail("Truncated at " + len);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        for (int i = 4; i < saved.limit(); i++) {
+            ByteBuffer corrupt = ByteBuffer.allocate(saved.limit());
+            corrupt.put(saved.duplicate()).flip();
+            corrupt.put(i, (byte) (corrupt.get(i) ^ 0x55));
+            try {
+                other.loadBinary(corrupt);
+            } catch (IllegalArgumentException e) {
+                // detected
+            }
+        }
+    }
+}
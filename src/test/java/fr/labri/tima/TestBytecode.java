@@ -0,0 +1,106 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.ActionAdapter;
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.RunReport;
+import fr.labri.tima.ITimedAutomata.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestBytecode {
+    static final StringBuilder TRACE = new StringBuilder();
+
+    static Action<Character> trace(String name) {
+        return new ActionAdapter<Character>() {
+            @Override
+            public void preAction(Character context) {
+                TRACE.append('+').append(name);
+            }
+
+            @Override
+            public void postAction(Character context) {
+                TRACE.append('-').append(name);
+            }
+        };
+    }
+
+    static TimedAutomata<Character> automata() {
+        TimedAutomataFactory<Character> factory = new TimedAutomataFactory<>(null);
+        State<Character> s0 = factory.newState("s0", new ArrayList<>(Arrays.asList(trace("a"), trace("b"))), ITimedAutomata.INITIAL);
+        State<Character> s1 = factory.newState("s1", new ArrayList<>(Collections.singletonList(trace("c"))), 0);
+        State<Character> s2 = new State<Character>() {
+            @Override
+            public String getName() {
+                return "s2";
+            }
+
+            @Override
+            public List<Action<Character>> getActions() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public int getModifier() {
+                return 0;
+            }
+
+            @Override
+            public void preAction(Character context) {
+            }
+
+            @Override
+            public void eachAction(Character context) {
+                TRACE.append('.');
+            }
+
+            @Override
+            public void postAction(Character context) {
+            }
+        };
+
+        TimedAutomata<Character> auto = new TimedAutomata<>();
+        for (char c = 'a'; c <= 'z'; c++)
+            auto.addTransition(s0, new Example.CharPredicate(c), c < 'm' ? s1 : s2);
+        auto.addTransition(s1, new Example.CharPredicate('z'), s0);
+        auto.addTransition(s1, new Example.CharPredicate('e'), s2);
+        auto.addTransition(s2, 10, new Example.CharPredicate('q'), s1);
+        auto.addDefaultTransition(s2, s0);
+        auto.setInitial(s0);
+        return auto;
+    }
+
+    @Test
+    public void testSameRun() {
+        Random rnd = new Random(5);
+        Character[] events = new Character[10000];
+        for (int i = 0; i < events.length; i++)
+            events[i] = (char) ('a' + rnd.nextInt(26));
+
+        TimedAutomata<Character> auto = automata();
+        CompiledTimedAutomata<Character> generated = BytecodeCompiler.compile(auto);
+        assertTrue(generated instanceof BytecodeTimedAutomata);
+
+        List<String> traces = new ArrayList<>();
+        long[] transitions = new long[2];
+        int i = 0;
+        for (ITimedAutomata<Character> a : Arrays.<ITimedAutomata<Character>>asList(auto.compile(), generated)) {
+            TRACE.setLength(0);
+            Cursor<Character> cursor = a.start(null);
+            RunReport report = new RunReport();
+            cursor.run(events, 0, events.length, report);
+            transitions[i ++] = report.transitions;
+            traces.add(TRACE.toString() + cursor.getLastValidPredicate().getType());
+        }
+        assertTrue(transitions[0] > 0);
+        assertEquals(transitions[0], transitions[1]);
+        assertEquals(traces.get(0), traces.get(1));
+    }
+}
@@ -0,0 +1,40 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.PredicateAdapter;
+import fr.labri.tima.ITimedAutomata.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class TestCompiler {
+    @Test
+    public void testManyDeadlines() {
+        int k = 2000;
+        TimedAutomataFactory<Character> factory = new TimedAutomataFactory<>(null);
+        State<Character> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+        State<Character> s1 = factory.newState("s1", new ArrayList<>(), 0);
+        State<Character> s2 = factory.newState("s2", new ArrayList<>(), 0);
+
+        TimedAutomata<Character> auto = new TimedAutomata<>();
+        for (int i = k; i > 0; i--)
+            auto.addTransition(s0, i, new PredicateAdapter<>(), s1);
+        auto.addDefaultTransition(s0, s2);
+        auto.addTransition(s1, new Example.CharPredicate('a'), s0);
+        auto.addTransition(s2, new Example.CharPredicate('b'), s0);
+        auto.setInitial(s0);
+
+        CompiledTimedAutomata<Character> compiled = (CompiledTimedAutomata<Character>) auto.compile();
+        assertEquals(3 + k - 1, compiled.getStates().length);
+
+        int state = compiled._initial;
+        for (int i = 0; i < k - 1; i++) {
+            assertEquals(k - i, compiled.transitions(state));
+            assertEquals(1, compiled._timeouts[state]);
+            state = compiled._timeoutsTarget[state];
+        }
+        assertEquals(1, compiled.transitions(state));
+        assertSame(s2, compiled.getStates()[compiled._timeoutsTarget[state]]);
+    }
+}
@@ -0,0 +1,74 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.PredicateAdapter;
+import fr.labri.tima.ITimedAutomata.RunReport;
+import fr.labri.tima.ITimedAutomata.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestGuardIndex {
+    static class CountingPredicate extends Example.CharPredicate {
+        static int evaluations;
+
+        CountingPredicate(char c) {
+            super(c);
+        }
+
+        @Override
+        public boolean isValid(Character c) {
+            evaluations ++;
+            return super.isValid(c);
+        }
+    }
+
+    static TimedAutomata<Character> automata() {
+        TimedAutomataFactory<Character> factory = new TimedAutomataFactory<>(null);
+        State<Character> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+        State<Character> s1 = factory.newState("s1", new ArrayList<>(), 0);
+        State<Character> s2 = factory.newState("s2", new ArrayList<>(), 0);
+
+        TimedAutomata<Character> auto = new TimedAutomata<>();
+        for (char c = 'a'; c <= 'z'; c++)
+            auto.addTransition(s0, new CountingPredicate(c), c < 'm' ? s1 : s2);
+        auto.addTransition(s1, new PredicateAdapter<Character>() {
+            @Override
+            public boolean isValid(Character context) {
+                return "aeiouy".indexOf(context) >= 0;
+            }
+        }, s2);
+        auto.addTransition(s1, new CountingPredicate('z'), s0);
+        auto.addTransition(s2, 10, new CountingPredicate('q'), s1);
+        auto.addTransition(s2, 10, new CountingPredicate('e'), s0);
+        auto.addDefaultTransition(s2, s0);
+        auto.setInitial(s0);
+        return auto;
+    }
+
+    @Test
+    public void testSameRun() {
+        Random rnd = new Random(3);
+        Character[] events = new Character[10000];
+        for (int i = 0; i < events.length; i++)
+            events[i] = (char) ('a' + rnd.nextInt(26));
+
+        CountingPredicate.evaluations = 0;
+        Cursor<Character> plain = automata().compile().start(null);
+        RunReport plainReport = new RunReport();
+        plain.run(events, 0, events.length, plainReport);
+        int plainEvaluations = CountingPredicate.evaluations;
+
+        CountingPredicate.evaluations = 0;
+        Cursor<Character> indexed = ((CompiledTimedAutomata<Character>) automata().compile()).index(c -> c).start(null);
+        RunReport indexedReport = new RunReport();
+        indexed.run(events, 0, events.length, indexedReport);
+
+        assertEquals(plainReport.transitions, indexedReport.transitions);
+        assertEquals(plain.getLastValidPredicate().getType(), indexed.getLastValidPredicate().getType());
+        assertTrue(CountingPredicate.evaluations < plainEvaluations / 5);
+    }
+}
@@ -0,0 +1,166 @@
+package fr.labri.tima;
+
+import fr.labri.tima.MessagingNodeFactory.CountingPattern;
+import fr.labri.tima.MessagingNodeFactory.IndexedMailbox;
+import fr.labri.tima.MessagingNodeFactory.Mailbox;
+import fr.labri.tima.MessagingNodeFactory.Message;
+import fr.labri.tima.MessagingNodeFactory.MessagePattern;
+import fr.labri.tima.MessagingNodeFactory.OverflowPolicy;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestMailbox {
+    static MessagePattern ofType(String type) {
+        return new MessagePattern(type) {
+            @Override
+            public boolean match(Message other) {
+                return other._type == type();
+            }
+        };
+    }
+
+    static final MessagePattern ANY = new MessagePattern() {
+        @Override
+        public boolean match(Message other) {
+            return true;
+        }
+    };
+
+    @Test
+    public void testSelectiveReceive() {
+        Mailbox mailbox = new IndexedMailbox();
+        Message[] messages = new Message[1000];
+        for (int i = 0; i < messages.length; i++)
+            assertTrue(mailbox.receive(messages[i] = new Message(i % 10 == 9 ? "ping" : "noise")));
+
+        for (int i = 9; i < messages.length; i += 10)
+            assertSame(messages[i], mailbox.extractFrom(ofType("ping"), false));
+        assertNull(mailbox.extractFrom(ofType("ping"), false));
+        assertNull(mailbox.extractFrom(ofType("ping"), true));
+        assertSame(messages[0], mailbox.extractFrom(ANY, true));
+        assertSame(messages[1], mailbox.extractFrom(ANY, false));
+        assertEquals(898, mailbox.size());
+    }
+
+    @Test
+    public void testWildcardOrder() {
+        wildcardOrder(new IndexedMailbox());
+        wildcardOrder(new MpscMailbox());
+    }
+
+    static void wildcardOrder(Mailbox mailbox) {
+        String[] types = {"a", "b", "c", "b", "a"};
+        Message[] messages = new Message[types.length];
+        for (int i = 0; i < types.length; i++)
+            mailbox.receive(messages[i] = new Message(types[i]));
+        assertNull(mailbox.extractFrom(ofType("b"), true));
+        assertSame(messages[1], mailbox.extractFrom(ofType("b"), false));
+        for (int i : new int[] {0, 2, 3, 4})
+            assertSame(messages[i], mailbox.extractFrom(ANY, false));
+        assertEquals(0, mailbox.size());
+    }
+
+    @Test
+    public void testConcurrentSenders() throws InterruptedException {
+        Mailbox mailbox = new MpscMailbox();
+        int senders = 8, count = 2000;
+        Thread[] threads = new Thread[senders];
+        for (int t = 0; t < senders; t++) {
+            String type = "sender" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < count; i++)
+                    mailbox.receive(new Message(type).set("seq", i));
+            });
+            threads[t].start();
+        }
+
+        int[] next = new int[senders];
+        for (int received = 0; received < senders * count; ) {
+            int t = received % senders;
+            Message m = mailbox.extractFrom(ofType("sender" + t), false);
+            if (m == null)
+                m = mailbox.extractFrom(ANY, true);
+            if (m != null) {
+                int sender = Integer.parseInt(m._type.substring(6));
+                assertEquals(next[sender]++, (int) m.get("seq"));
+                received++;
+            }
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, mailbox.size());
+        assertNull(mailbox.extractFrom(ANY, false));
+    }
+
+    @Test
+    public void testOverflow() {
+        Mailbox newest = new IndexedMailbox(2, OverflowPolicy.DROP_NEWEST);
+        Mailbox oldest = new IndexedMailbox(2, OverflowPolicy.DROP_OLDEST);
+        Message[] messages = {new Message("a"), new Message("b"), new Message("a")};
+        for (Message m : messages) {
+            newest.receive(m);
+            oldest.receive(m);
+        }
+        assertSame(messages[0], newest.extractFrom(ANY, true));
+        assertSame(messages[1], oldest.extractFrom(ANY, true));
+        assertSame(messages[2], oldest.extractFrom(ofType("a"), false));
+    }
+
+    @Test
+    public void testBlock() throws InterruptedException {
+        Mailbox mailbox = new IndexedMailbox(1, OverflowPolicy.BLOCK);
+        Message[] messages = {new Message("a"), new Message("b")};
+        assertTrue(mailbox.receive(messages[0]));
+        Thread sender = new Thread(() -> mailbox.receive(messages[1]));
+        sender.start();
+        sender.join(100);
+        assertTrue(sender.isAlive());
+        assertEquals(1, mailbox.size());
+
+        assertSame(messages[0], mailbox.extractFrom(ANY, true));
+        sender.join();
+        assertSame(messages[1], mailbox.extractFrom(ANY, true));
+    }
+
+    @Test
+    public void testScanCount() {
+        IndexedMailbox mailbox = new IndexedMailbox();
+        for (int i = 0; i < 100; i++)
+            mailbox.receive(new Message(i % 10 == 9 ? "ping" : "noise"));
+
+        CountingPattern typed = new CountingPattern(ofType("ping"));
+        assertNotNull(mailbox.extract(typed, false));
+        assertEquals(1, typed._scanned);
+
+        CountingPattern any = new CountingPattern(new MessagePattern() {
+            @Override
+            public boolean match(Message other) {
+                return other._type == "ping";
+            }
+        });
+        assertNotNull(mailbox.extract(any, false));
+        assertTrue(any._scanned > 1);
+    }
+
+    @Test
+    public void testHistogram() {
+        for (long v : new long[] { 0, 1, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+            int index = MailboxMetrics.Histogram.index(v);
+            assertTrue(MailboxMetrics.Histogram.lowest(index) <= v);
+            assertTrue(v - MailboxMetrics.Histogram.lowest(index) <= v >>> MailboxMetrics.Histogram.SUB);
+        }
+
+        MailboxMetrics.Counters metrics = new MailboxMetrics.Counters();
+        for (int i = 1; i <= 1000; i++) {
+            metrics.received(i);
+            metrics.consumed(0, i, 1000L * i);
+        }
+        assertEquals(1000, metrics.getMaxDepth());
+        assertEquals(0, metrics.getDepth());
+        assertEquals(1000, metrics.getAge().count());
+        long p50 = metrics.getScanned().percentile(50);
+        assertTrue(p50 >= 500 && p50 < 500 + (500 >> MailboxMetrics.Histogram.SUB) + 1);
+        assertTrue(metrics.getAge().percentile(99) >= 990000);
+    }
+}
@@ -0,0 +1,97 @@
+package fr.labri.tima;
+
+import fr.labri.tima.MessagingNodeFactory.CompiledPattern;
+import fr.labri.tima.MessagingNodeFactory.Message;
+import fr.labri.tima.MessagingNodeFactory.MessagePool;
+import fr.labri.tima.MessagingNodeFactory.MessageSchema;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestMessage {
+    @Test
+    public void testSchemaSlots() {
+        MessageSchema schema = MessageSchema.of("point");
+        assertSame(schema, MessageSchema.of(new String("point")));
+        int x = schema.slot("x"), y = schema.slot("y");
+        assertNotEquals(x, y);
+        assertEquals(x, schema.slot("x"));
+        assertEquals(-1, schema.indexOf("z"));
+
+        Message prototype = new Message("point").set(x, 1).set("y", 2);
+        Message copy = new Message(prototype).set("z", 3);
+        assertEquals(Integer.valueOf(1), copy.get("x"));
+        assertEquals(Integer.valueOf(3), copy.get("z"));
+        assertEquals(0, prototype.get(schema.slot("z")));
+        assertEquals(2, prototype.data().size());
+    }
+
+    @Test
+    public void testMerge() {
+        Message from = new Message("request").set("id", 41).set("size", 7);
+        Message to = new Message("reply").merge(from, v -> v + 1, "id", "size");
+        assertEquals(Integer.valueOf(42), to.get("id"));
+        assertEquals(Integer.valueOf(8), to.get("size"));
+
+        Message retyped = new Message("reply", from);
+        assertEquals(Integer.valueOf(41), retyped.get("id"));
+        assertNull(new Message("empty").get("id"));
+
+        Message missing = new Message("reply").merge(from, v -> v + 1, "absent");
+        assertEquals(Integer.valueOf(1), missing.get("absent"));
+        assertEquals(-1, from._schema.indexOf("absent"));
+    }
+
+    @Test
+    public void testPool() {
+        Message prototype = new Message("pooled").set("n", 1);
+        Message m = MessagePool.acquire(prototype).set("n", 2);
+        m.retain();
+        m.release();
+        m.release();
+        Message again = MessagePool.acquire(prototype);
+        assertSame(m, again);
+        assertEquals(Integer.valueOf(1), again.get("n"));
+        again.release();
+        try {
+            again.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // released twice
+        }
+    }
+
+    @Test
+    public void testLeaks() {
+        boolean debug = MessagePool._debug;
+        MessagePool._debug = true;
+        try {
+            Message prototype = new Message("leaky");
+            Message released = MessagePool.acquire(prototype);
+            Message leaked = MessagePool.acquire(prototype);
+            released.release();
+            assertEquals(1, MessagePool.leaks().size());
+            leaked.release();
+            assertTrue(MessagePool.leaks().isEmpty());
+        } finally {
+            MessagePool._debug = debug;
+        }
+    }
+
+    @Test
+    public void testPattern() {
+        CompiledPattern pattern = CompiledPattern.parse("?order(qty >= 10, qty<100, side == -1)");
+        assertEquals("order", pattern.type());
+        assertTrue(pattern.match(new Message("order").set("qty", 10).set("side", -1)));
+        assertFalse(pattern.match(new Message("order").set("qty", 100).set("side", -1)));
+        assertFalse(pattern.match(new Message("order").set("qty", 50)));
+        assertFalse(pattern.match(new Message("quote").set("qty", 50).set("side", -1)));
+        assertTrue(CompiledPattern.parse("?order").match(new Message("order")));
+        assertTrue(CompiledPattern.parse("?order()").match(new Message("order")));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testInvalidPattern() {
+        CompiledPattern.parse("?order(qty ~ 3)");
+    }
+}
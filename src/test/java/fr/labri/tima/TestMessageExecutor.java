@@ -0,0 +1,383 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.ActionAdapter;
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.Predicate;
+import fr.labri.tima.ITimedAutomata.PredicateAdapter;
+import fr.labri.tima.ITimedAutomata.State;
+import fr.labri.tima.MessagingNodeFactory.CompiledPattern;
+import fr.labri.tima.MessagingNodeFactory.IndexedMailbox;
+import fr.labri.tima.MessagingNodeFactory.Mailbox;
+import fr.labri.tima.MessagingNodeFactory.Message;
+import fr.labri.tima.MessagingNodeFactory.MessageExecutor;
+import fr.labri.tima.MessagingNodeFactory.MessagePool;
+import fr.labri.tima.MessagingNodeFactory.OverflowPolicy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class TestMessageExecutor {
+    static final int AUTOMATA = 16;
+    static final int TICKS = 200;
+
+    @Test
+    public void testShardedRing() {
+        shardedRing(false);
+    }
+
+    @Test
+    public void testLockFreeRing() {
+        shardedRing(true);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void shardedRing(boolean lockFree) {
+        AtomicInteger received = new AtomicInteger();
+        List<Set<String>> threads = new ArrayList<>();
+        List<ITimedAutomata<Object>> autos = new ArrayList<>();
+        TimedAutomataFactory<Object> factory = new TimedAutomataFactory<>(null);
+        for (int i = 0; i < AUTOMATA; i++) {
+            final int next = (i + 1) % AUTOMATA;
+            final Set<String> seen = new HashSet<>();
+            threads.add(seen);
+            State<Object> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+            TimedAutomata<Object> auto = new TimedAutomata<>();
+            auto.addTransition(s0, (ITimedAutomata.Predicate) new PredicateAdapter<MessageExecutor<Object>.MessageContext>() {
+                @Override
+                public boolean isValid(MessageExecutor<Object>.MessageContext context) {
+                    seen.add(Thread.currentThread().getName());
+                    context.sendMessage(next, new Message("tok"));
+                    if (context.select(TestMailbox.ofType("tok")))
+                        received.incrementAndGet();
+                    return false;
+                }
+            }, s0);
+            auto.setInitial(s0);
+            autos.add(auto.compile());
+        }
+
+        MessageExecutor<Object> executor = new MessageExecutor<>(() -> null, autos).threaded(4);
+        if (lockFree)
+            executor.lockFreeMailboxes();
+        executor.start();
+        assertEquals(lockFree ? MpscMailbox.class : MessagingNodeFactory.IndexedMailbox.class, executor._mailboxes[0].getClass());
+        for (int t = 0; t < TICKS; t++)
+            assertTrue(executor.next());
+        executor.shutdown();
+
+        int pending = 0;
+        for (Mailbox mailbox : executor._mailboxes)
+            pending += mailbox.size();
+        assertEquals(AUTOMATA * TICKS, received.get() + pending);
+        for (Set<String> seen : threads)
+            assertEquals(1, seen.size());
+    }
+
+    int _tick;
+    int _evaluations;
+    final int[] _entered = new int[3];
+
+    @Test
+    public void testParking() {
+        assertEquals(Arrays.asList(30, 100, 200), entered(false));
+        int polling = _evaluations;
+        assertEquals(Arrays.asList(30, 100, 200), entered(true));
+        assertEquals(5, _evaluations);
+        assertTrue(polling > 200);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<Integer> entered(boolean parking) {
+        MessagingNodeFactory<Object> messaging = new MessagingNodeFactory<>(null);
+        TimedAutomataFactory<Object> factory = new TimedAutomataFactory<>(null);
+        Predicate filter = messaging.new MessageFilter(CompiledPattern.parse("?hello")) {
+            @Override
+            public boolean isValid(MessageExecutor<Object>.MessageContext context) {
+                _evaluations ++;
+                return super.isValid(context);
+            }
+        };
+
+        State<Object> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+        TimedAutomata<Object> sender = new TimedAutomata<>();
+        sender.addTransition(s0, (Predicate) new PredicateAdapter<MessageExecutor<Object>.MessageContext>() {
+            @Override
+            public boolean isValid(MessageExecutor<Object>.MessageContext context) {
+                if (_tick == 30 || _tick == 150)
+                    context.sendMessage(1, new Message("hello"));
+                if (_tick == 200)
+                    context.sendMessage(2, new Message("hello"));
+                return false;
+            }
+        }, s0);
+        sender.setInitial(s0);
+
+        TimedAutomata<Object> receiver = new TimedAutomata<>();
+        State<Object> wait = factory.newState("wait", new ArrayList<>(), ITimedAutomata.INITIAL);
+        receiver.addTransition(wait, filter, factory.newState("got", entering(0), ITimedAutomata.TERMINATE));
+        receiver.setInitial(wait);
+
+        TimedAutomata<Object> timed = new TimedAutomata<>();
+        State<Object> wait2 = factory.newState("wait", new ArrayList<>(), ITimedAutomata.INITIAL);
+        State<Object> again = factory.newState("again", entering(1), 0);
+        timed.addTransition(wait2, 100, filter, again);
+        timed.addDefaultTransition(wait2, again);
+        timed.addTransition(again, filter, factory.newState("got", entering(2), ITimedAutomata.TERMINATE));
+        timed.setInitial(wait2);
+
+        List<ITimedAutomata<Object>> autos = Arrays.asList(sender.compile(), receiver.compile(), timed.compile());
+        MessageExecutor<Object> executor = new MessageExecutor<>(() -> null, autos);
+        if (parking)
+            executor.parking();
+        executor.start();
+        _evaluations = 0;
+        Arrays.fill(_entered, 0);
+        for (_tick = 1; _tick <= 250; _tick ++)
+            executor.next();
+        return Arrays.asList(_entered[0], _entered[1], _entered[2]);
+    }
+
+    /*
+        Receiver 1 is woken on later ticks than it parks, with a long timeout. Receiver 2 parks before its sender runs
+        on the same tick, with a timeout firing between messages.
+     */
+    @Test
+    public void testParkedTicks() {
+        List<List<String>> polled = new ArrayList<>();
+        MessageExecutor<Object> polling = ticks(false, polled, null);
+        List<List<String>> parked = new ArrayList<>();
+        MessageExecutor<Object> parking = ticks(true, parked, p -> assertTrue(p._wheel.size() <= 2));
+        for (int t = 0; t < polled.size(); t++)
+            assertEquals("tick " + (t + 1), polled.get(t), parked.get(t));
+        assertTrue(polled.stream().anyMatch(tick -> tick.get(2).equals("timeout")));
+        assertTrue(polled.stream().anyMatch(tick -> tick.get(2).equals("got")));
+        polling.shutdown();
+        parking.shutdown();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private MessageExecutor<Object> ticks(boolean parking, List<List<String>> states, Consumer<MessageExecutor<Object>> check) {
+        MessagingNodeFactory<Object> messaging = new MessagingNodeFactory<>(null);
+        List<ITimedAutomata<Object>> autos = Arrays.asList(
+                periodicSender(1, 3, 0),
+                waitingReceiver(messaging, 1000),
+                waitingReceiver(messaging, 6),
+                periodicSender(2, 11, 1));
+        MessageExecutor<Object> executor = new MessageExecutor<>(() -> null, autos);
+        if (parking)
+            executor.parking();
+        executor.start();
+        for (_tick = 1; _tick <= 120; _tick ++) {
+            executor.next();
+            List<String> tick = new ArrayList<>();
+            for (Cursor<MessageExecutor<Object>.MessageContext> cursor : executor._cursors) {
+                CompiledTimedAutomata<MessageExecutor<Object>.MessageContext>.CompiledCursor c = (CompiledTimedAutomata<MessageExecutor<Object>.MessageContext>.CompiledCursor) cursor;
+                tick.add(c.getAutomata().getStates()[c._current].getName());
+            }
+            states.add(tick);
+            if (check != null)
+                check.accept(executor);
+        }
+        return executor;
+    }
+
+    /*
+        sends hello to target on the ticks t such that t % period == phase, never leaves its state
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private ITimedAutomata<Object> periodicSender(int target, int period, int phase) {
+        TimedAutomataFactory<Object> factory = new TimedAutomataFactory<>(null);
+        State<Object> s0 = factory.newState("send", new ArrayList<>(), ITimedAutomata.INITIAL);
+        TimedAutomata<Object> sender = new TimedAutomata<>();
+        sender.addTransition(s0, (Predicate) new PredicateAdapter<MessageExecutor<Object>.MessageContext>() {
+            @Override
+            public boolean isValid(MessageExecutor<Object>.MessageContext context) {
+                if (_tick % period == phase)
+                    context.sendMessage(target, new Message("hello"));
+                return false;
+            }
+        }, s0);
+        sender.setInitial(s0);
+        return sender.compile();
+    }
+
+    /*
+        waits for hello or timeout ticks, then goes back to waiting on the next tick
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ITimedAutomata<Object> waitingReceiver(MessagingNodeFactory<Object> messaging, int timeout) {
+        TimedAutomataFactory<Object> factory = new TimedAutomataFactory<>(null);
+        PredicateAdapter<Object> always = new PredicateAdapter<Object>() {
+            @Override
+            public boolean isValid(Object context) {
+                return true;
+            }
+        };
+        State<Object> wait = factory.newState("wait", new ArrayList<>(), ITimedAutomata.INITIAL);
+        State<Object> got = factory.newState("got", new ArrayList<>(), 0);
+        State<Object> expired = factory.newState("timeout", new ArrayList<>(), 0);
+        TimedAutomata<Object> receiver = new TimedAutomata<>();
+        receiver.addTransition(wait, timeout, (Predicate) messaging.newPredicate("?hello", null), got);
+        receiver.addDefaultTransition(wait, expired);
+        receiver.addTransition(got, always, wait);
+        receiver.addTransition(expired, always, wait);
+        receiver.setInitial(wait);
+        return receiver.compile();
+    }
+
+    private ArrayList<Action<Object>> entering(int i) {
+        ArrayList<Action<Object>> actions = new ArrayList<>();
+        actions.add(new ActionAdapter<Object>() {
+            @Override
+            public void preAction(Object context) {
+                _entered[i] = _tick;
+            }
+        });
+        return actions;
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void testBroadcast() {
+        MessagingNodeFactory<Object> messaging = new MessagingNodeFactory<>(null);
+        TimedAutomataFactory<Object> factory = new TimedAutomataFactory<>(null);
+        List<ITimedAutomata<Object>> autos = new ArrayList<>();
+        autos.add(sender("!news"));
+
+        Set<Message> received = new HashSet<>();
+        AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            ArrayList<Action<Object>> record = new ArrayList<>();
+            record.add((Action) new ActionAdapter<MessageExecutor<Object>.MessageContext>() {
+                @Override
+                public void preAction(MessageExecutor<Object>.MessageContext context) {
+                    received.add(context.currentMessage());
+                    count.incrementAndGet();
+                }
+            });
+            State<Object> wait = factory.newState("wait", new ArrayList<>(), ITimedAutomata.INITIAL);
+            TimedAutomata<Object> receiver = new TimedAutomata<>();
+            receiver.addTransition(wait, (Predicate) messaging.newPredicate("?hello", null), factory.newState("got", record, ITimedAutomata.TERMINATE));
+            receiver.setInitial(wait);
+            autos.add(receiver.compile());
+        }
+
+        MessageExecutor<Object> executor = new MessageExecutor<>(() -> null, autos).pooled();
+        boolean debug = MessagePool._debug;
+        MessagePool._debug = true;
+        try {
+            executor.subscribe("news", 1).subscribe("news", 2).subscribe("news", 4).start();
+            for (int t = 0; t < 5; t++)
+                executor.next();
+        } finally {
+            MessagePool._debug = debug;
+        }
+        assertEquals(3, count.get());
+        assertEquals(1, received.size());
+        assertEquals(0, executor._mailboxes[3].size());
+        assertTrue(MessagePool.leaks().isEmpty());
+    }
+
+    @Test
+    public void testNamedTarget() {
+        List<ITimedAutomata<Object>> autos = new ArrayList<>();
+        AtomicInteger[] counts = {new AtomicInteger(), new AtomicInteger()};
+        autos.add(sender("!b"));
+        autos.add(receiver("a", counts[0]));
+        autos.add(receiver("b", counts[1]));
+        MessageExecutor<Object> executor = new MessageExecutor<>(() -> null, autos);
+        executor.start();
+        for (int t = 0; t < 5; t++)
+            executor.next();
+        assertEquals(0, counts[0].get());
+        assertEquals(1, counts[1].get());
+    }
+
+    @Test
+    public void testSharedSender() {
+        ITimedAutomata<Object> shared = sender("!b");
+        AtomicInteger[] counts = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+        List<ITimedAutomata<Object>> first = new ArrayList<>();
+        first.add(shared);
+        first.add(receiver("a", counts[0]));
+        first.add(receiver("b", counts[1]));
+        List<ITimedAutomata<Object>> second = new ArrayList<>();
+        second.add(receiver("b", counts[2]));
+        second.add(shared);
+        MessageExecutor<Object> one = new MessageExecutor<>(() -> null, first);
+        MessageExecutor<Object> two = new MessageExecutor<>(() -> null, second);
+        one.start();
+        two.start();
+        for (int t = 0; t < 5; t++) {
+            one.next();
+            two.next();
+        }
+        assertEquals(0, counts[0].get());
+        assertEquals(1, counts[1].get());
+        assertEquals(1, counts[2].get());
+    }
+
+    @Test(expected = TimaException.UnknownTargetException.class)
+    public void testUnknownTarget() {
+        List<ITimedAutomata<Object>> autos = new ArrayList<>();
+        autos.add(sender("!nobody"));
+        autos.add(receiver("a", new AtomicInteger()));
+        new MessageExecutor<>(() -> null, autos).start();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBlockingMailbox() {
+        List<ITimedAutomata<Object>> autos = new ArrayList<>();
+        autos.add(sender("!a"));
+        autos.add(sender("!a"));
+        autos.add(receiver("a", new AtomicInteger()));
+        new MessageExecutor<>(() -> null, autos, () -> new IndexedMailbox(1, OverflowPolicy.BLOCK)).start();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ITimedAutomata<Object> sender(String target) {
+        MessagingNodeFactory<Object> messaging = new MessagingNodeFactory<>(null);
+        TimedAutomataFactory<Object> factory = new TimedAutomataFactory<>(null);
+        ArrayList<Action<Object>> send = new ArrayList<>();
+        send.add((Action) messaging.newAction(target, "hello"));
+        State<Object> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+        TimedAutomata<Object> sender = new TimedAutomata<>();
+        sender.addTransition(s0, new PredicateAdapter<Object>() {
+            @Override
+            public boolean isValid(Object context) {
+                return true;
+            }
+        }, factory.newState("sent", send, ITimedAutomata.TERMINATE));
+        sender.setInitial(s0);
+        sender.setName("sender");
+        return sender.compile();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ITimedAutomata<Object> receiver(String name, AtomicInteger count) {
+        MessagingNodeFactory<Object> messaging = new MessagingNodeFactory<>(null);
+        TimedAutomataFactory<Object> factory = new TimedAutomataFactory<>(null);
+        ArrayList<Action<Object>> record = new ArrayList<>();
+        record.add(new ActionAdapter<Object>() {
+            @Override
+            public void preAction(Object context) {
+                count.incrementAndGet();
+            }
+        });
+        State<Object> wait = factory.newState("wait", new ArrayList<>(), ITimedAutomata.INITIAL);
+        TimedAutomata<Object> receiver = new TimedAutomata<>();
+        receiver.addTransition(wait, (Predicate) messaging.newPredicate("?hello", null), factory.newState("got", record, ITimedAutomata.TERMINATE));
+        receiver.setInitial(wait);
+        receiver.setName(name);
+        return receiver.compile();
+    }
+}
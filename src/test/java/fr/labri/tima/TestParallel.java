@@ -0,0 +1,156 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Cursor;
+import fr.labri.tima.ITimedAutomata.RunReport;
+import fr.labri.tima.ITimedAutomata.State;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+public class TestParallel {
+    static final int AUTOMATA = 600;
+    static final int THRESHOLD = 64;
+    static final int GRAIN = 16;
+
+    final ForkJoinPool _pool = new ForkJoinPool(4);
+    final Character[] _events = new Character[400];
+    volatile int _tick;
+
+    @After
+    public void shutdown() {
+        _pool.shutdown();
+    }
+
+    /*
+        automaton i waits for its own letter, then for another one to terminate
+     */
+    static List<ITimedAutomata<Character>> automata() {
+        return automata(null);
+    }
+
+    /*
+        count the guard evaluations in evaluations if not null, predicates are then bound to the id of their letter
+     */
+    static List<ITimedAutomata<Character>> automata(LongAdder evaluations) {
+        List<ITimedAutomata<Character>> automata = new ArrayList<>();
+        for (int i = 0; i < AUTOMATA; i++) {
+            TimedAutomataFactory<Character> factory = new TimedAutomataFactory<>(null);
+            State<Character> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+            State<Character> s1 = factory.newState("s1", new ArrayList<>(), 0);
+            State<Character> end = factory.newState("end", new ArrayList<>(), ITimedAutomata.TERMINATE);
+            TimedAutomata<Character> auto = new TimedAutomata<>();
+            auto.addTransition(s0, letter('a' + i % 26, evaluations), s1);
+            auto.addTransition(s1, letter('a' + (i * 7 + 3) % 26, evaluations), end);
+            auto.addTransition(s1, letter('a' + (i + 1) % 26, evaluations), s0);
+            auto.setInitial(s0);
+            CompiledTimedAutomata<Character> compiled = (CompiledTimedAutomata<Character>) auto.compile();
+            if (evaluations != null)
+                compiled.bindPredicates(p -> ((Example.CharPredicate) p).letter - 'a');
+            automata.add(compiled);
+        }
+        return automata;
+    }
+
+    static Example.CharPredicate letter(int c, LongAdder evaluations) {
+        return new Example.CharPredicate((char) c) {
+            @Override
+            public boolean isValid(Character context) {
+                if (evaluations != null)
+                    evaluations.increment();
+                return super.isValid(context);
+            }
+        };
+    }
+
+    void randomEvents(long seed) {
+        Random rnd = new Random(seed);
+        for (int i = 0; i < _events.length; i++)
+            _events[i] = (char) ('a' + rnd.nextInt(26));
+    }
+
+    @Test
+    public void testSameTicks() {
+        randomEvents(3);
+        List<ITimedAutomata<Character>> automata = automata();
+        BasicExecutor<Character> basic = new BasicExecutor<>(() -> _events[_tick], automata).start();
+        ParallelExecutor<Character> parallel = new ParallelExecutor<>(() -> _events[_tick], automata, _pool, THRESHOLD, GRAIN).start();
+
+        int parallelTicks = 0;
+        for (_tick = 0; _tick < _events.length; _tick++) {
+            if (parallel._alive >= THRESHOLD)
+                parallelTicks ++;
+            boolean running = basic.next();
+            assertEquals(running, parallel.next());
+            assertEquals(basic._alive, parallel._alive);
+            assertEquals("tick " + _tick, states(basic, automata), states(parallel, automata));
+        }
+        assertTrue(parallelTicks > 10);
+        assertTrue(parallel._alive < AUTOMATA);
+    }
+
+    @Test
+    public void testSameFeed() {
+        randomEvents(5);
+        List<ITimedAutomata<Character>> automata = automata();
+        BasicExecutor<Character> basic = new BasicExecutor<>(() -> 'a', automata).start();
+        ParallelExecutor<Character> parallel = new ParallelExecutor<>(() -> 'a', automata, _pool, THRESHOLD, GRAIN).start();
+
+        for (int off = 0; off < _events.length; off += 40) {
+            boolean above = parallel._alive >= THRESHOLD;
+            RunReport expected = basic.feed(_events, off, 40);
+            RunReport report = parallel.feed(_events, off, 40);
+            assertEquals(expected.toString(), report.toString());
+            assertEquals(basic._alive, parallel._alive);
+            assertEquals(states(basic, automata), states(parallel, automata));
+            if (off == 0)
+                assertTrue(above && report.terminated > 0);
+        }
+    }
+
+    @Test
+    public void testMemoizedTicks() {
+        randomEvents(7);
+        LongAdder basicEvaluations = new LongAdder(), evaluations = new LongAdder();
+        List<ITimedAutomata<Character>> basicAutomata = automata(basicEvaluations), automata = automata(evaluations);
+        BasicExecutor<Character> basic = new BasicExecutor<>(() -> _events[_tick], basicAutomata).start();
+        ParallelExecutor<Character> parallel = new ParallelExecutor<>(() -> _events[_tick], automata, _pool, THRESHOLD, GRAIN).memoize(26).start();
+
+        for (_tick = 0; parallel._alive >= THRESHOLD; _tick++) {
+            assertEquals(basic.next(), parallel.next());
+            assertEquals("tick " + _tick, states(basic, basicAutomata), states(parallel, automata));
+        }
+        assertTrue(_tick > 10);
+        assertTrue(evaluations.sum() < basicEvaluations.sum());
+    }
+
+    /*
+        sorted automaton:state name of the alive cursors, state indices differ between two compilations, each alive cursor must appear once
+     */
+    private static List<String> states(BasicExecutor<Character> executor, List<ITimedAutomata<Character>> automata) {
+        Map<ITimedAutomata<Character>, Integer> ids = new IdentityHashMap<>();
+        for (ITimedAutomata<Character> a : automata)
+            ids.put(a, ids.size());
+        Map<Cursor<Character>, Boolean> seen = new IdentityHashMap<>();
+        List<String> states = new ArrayList<>();
+        for (int i = 0; i < executor._alive; i++) {
+            @SuppressWarnings("unchecked")
+            CompiledTimedAutomata<Character>.CompiledCursor cursor = (CompiledTimedAutomata<Character>.CompiledCursor) executor._cursors[i];
+            assertNull("cursor kept twice", seen.put(cursor, true));
+            State<Character> state = cursor.getAutomata().getStates()[cursor._current];
+            assertFalse("terminated cursor kept", (state.getModifier() & ITimedAutomata.TERMINATE) != 0);
+            states.add(ids.get(cursor.getAutomata()) + ":" + state.getName());
+        }
+        Collections.sort(states);
+        return states;
+    }
+}
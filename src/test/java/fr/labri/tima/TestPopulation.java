@@ -0,0 +1,36 @@
+package fr.labri.tima;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestPopulation {
+
+    @Test
+    public void testInstanceContexts() {
+        final String[] words = {"xab", "aaaab", "bbbb"};
+        final int[] tick = {0};
+        PopulationExecutor<Character> population = new PopulationExecutor<>(
+                instance -> words[instance].charAt(Math.min(tick[0], words[instance].length() - 1)),
+                TestBatch.abAutomata(), words.length).start();
+
+        while (tick[0] < 3) {
+            assertTrue(population.next());
+            tick[0] ++;
+        }
+        assertFalse(population.isAlive(0));
+        assertEquals("end", population.getState(0).getName());
+        assertEquals("s1", population.getState(1).getName());
+        assertEquals("s0", population.getState(2).getName());
+        assertNull(population.getLastValidPredicate(2));
+        assertEquals(2, population.getAlive());
+
+        while (tick[0] < 5) {
+            assertTrue(population.next());
+            tick[0] ++;
+        }
+        assertEquals(1, population.getAlive());
+        assertFalse(population.isAlive(1));
+        assertTrue(population.isAlive(2));
+    }
+}
@@ -0,0 +1,59 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.Executor;
+import fr.labri.tima.ITimedAutomata.NodeFactory;
+import fr.labri.tima.ITimedAutomata.Predicate;
+import fr.labri.tima.ITimedAutomata.PredicateAdapter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestPredicateMemo {
+    static final String XML = "<timedautomata name='a'>"
+            + "<state name='s0' initial='true'><path to='s1' guard='even'/><path to='s0' guard='odd'/></state>"
+            + "<state name='s1'><path to='s0' guard='odd'/></state>"
+            + "<timedautomata name='b'>"
+            + "<state name='s0' initial='true'><path to='s1' guard='even'/></state>"
+            + "<state name='s1'><path to='s0' guard='odd'/></state>"
+            + "</timedautomata></timedautomata>";
+
+    int _evaluations;
+    int _tick;
+
+    @Test
+    public void testSharedGuards() throws Exception {
+        assertEquals(7, evaluations(false));
+        assertEquals(4, evaluations(true));
+    }
+
+    private int evaluations(boolean memoize) throws Exception {
+        TimedAutomataFactory<Integer> factory = new TimedAutomataFactory<>(new NodeFactory<Integer>() {
+            @Override
+            public Predicate<Integer> newPredicate(String type, String attr) {
+                final int parity = "even".equals(type) ? 0 : 1;
+                return new PredicateAdapter<Integer>() {
+                    @Override
+                    public boolean isValid(Integer context) {
+                        _evaluations ++;
+                        return context % 2 == parity;
+                    }
+                };
+            }
+
+            @Override
+            public Action<Integer> newAction(String type, String attr) {
+                return null;
+            }
+        });
+        factory.loadXML(new ByteArrayInputStream(XML.getBytes("UTF-8")));
+
+        _evaluations = _tick = 0;
+        Executor<Integer> executor = factory.getExecutor(() -> _tick, true, memoize);
+        for (_tick = 1; _tick <= 3; _tick ++)
+            executor.next();
+        return _evaluations;
+    }
+}
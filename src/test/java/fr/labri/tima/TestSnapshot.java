@@ -0,0 +1,93 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Cursor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestSnapshot {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    char _event;
+
+    @Test
+    public void testRestore() throws Exception {
+        List<ITimedAutomata<Character>> autos = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            autos.add(i % 3 == 0 ? TestBatch.abAutomata().compile() : TestGuardIndex.automata().compile());
+        BasicExecutor<Character> running = new BasicExecutor<>(() -> _event, autos).start();
+        Random rnd = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            _event = (char) ('a' + rnd.nextInt(26));
+            running.next();
+        }
+
+        ByteBuffer buffer = running.snapshot(ByteBuffer.allocate((int) running.snapshotSize()));
+        buffer.flip();
+        BasicExecutor<Character> restored = new BasicExecutor<>(() -> _event, autos).restore(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        File file = folder.newFile();
+        restored.snapshot(file.toPath());
+        assertEquals(buffer.limit(), file.length());
+        BasicExecutor<Character> mapped = new BasicExecutor<>(() -> _event, autos).restore(file.toPath());
+
+        for (int i = 0; i < 50; i++) {
+            _event = (char) ('a' + rnd.nextInt(26));
+            assertEquals(running.next(), restored.next());
+            mapped.next();
+        }
+        assertSameCursors(running, restored);
+        assertSameCursors(running, mapped);
+    }
+
+    @Test
+    public void testCorrupt() {
+        List<ITimedAutomata<Character>> autos = new ArrayList<>();
+        autos.add(TestBatch.abAutomata().compile());
+        BasicExecutor<Character> executor = new BasicExecutor<>(() -> 'x', autos).start();
+        ByteBuffer buffer = executor.snapshot(ByteBuffer.allocate((int) executor.snapshotSize()));
+        buffer.flip();
+        buffer.put(3, (byte) 5); // automaton index
+        assertRestoreFails(executor, buffer);
+        buffer.put(3, (byte) 0);
+        buffer.limit(buffer.limit() - 1);
+        assertRestoreFails(executor, buffer);
+        assertEquals(1, executor._alive);
+    }
+
+    private static void assertRestoreFails(BasicExecutor<Character> executor, ByteBuffer buffer) {
+        try {
+            executor.restore(buffer.duplicate());
+            fail("Corrupt snapshot restored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void assertSameCursors(BasicExecutor<Character> expected, BasicExecutor<Character> actual) {
+        assertEquals(expected._alive, actual._alive);
+        for (int i = 0; i < expected._alive; i++) {
+            CompiledTimedAutomata<Character>.CompiledCursor e = cursor(expected, i), a = cursor(actual, i);
+            assertEquals(e.getAutomata(), a.getAutomata());
+            assertEquals(e._current, a._current);
+            assertEquals(e._currentTimeout, a._currentTimeout);
+            assertEquals(e.getLastValidPredicate(), a.getLastValidPredicate());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompiledTimedAutomata<Character>.CompiledCursor cursor(BasicExecutor<Character> executor, int i) {
+        Cursor<Character> cursor = executor._cursors[i];
+        return (CompiledTimedAutomata<Character>.CompiledCursor) cursor;
+    }
+}
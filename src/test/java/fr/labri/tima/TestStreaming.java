@@ -0,0 +1,82 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.Predicate;
+import fr.labri.tima.ITimedAutomata.State;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class TestStreaming {
+    /*
+        the states of each automaton sorted by name, with their actions and their transitions in order
+     */
+    static Map<String, String> describe(List<ITimedAutomata<Void>> automata) {
+        Map<String, String> description = new TreeMap<>();
+        for (ITimedAutomata<Void> auto : automata) {
+            StringBuilder b = new StringBuilder("initial=").append(auto.getInitialState().getName());
+            State<Void>[] states = auto.getStates();
+            Arrays.sort(states, Comparator.comparing(State::getName));
+            for (State<Void> state : states) {
+                b.append('\n').append(state.getName()).append(" modifiers=").append(state.getModifier());
+                for (Action<Void> action : state.getActions())
+                    b.append(" !").append(action.getType());
+                for (State<Void> dst : auto.getFollowers(state)) {
+                    Predicate<Void> predicate = auto.getPredicate(state, dst);
+                    b.append(" -> ").append(dst.getName()).append('[').append(predicate == null ? "default" : predicate.getType())
+                            .append('/').append(auto.getTimeout(state, dst)).append(']');
+                }
+            }
+            description.put(auto.getName(), b.toString());
+        }
+        return description;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSameAsDocument() throws Exception {
+        List<ITimedAutomata<Void>> document = new TimedAutomataFactory<Void>(new SimpleNodeFactory<>()).loadXML(TestUtils.getInputStream("/ex3.xml"));
+        List<ITimedAutomata<Void>> streamed = new TimedAutomataFactory<Void>(new SimpleNodeFactory<>()).streamXML(TestUtils.getInputStream("/ex3.xml"), false);
+
+        assertEquals(2, streamed.size());
+        assertEquals("ex3", streamed.get(0).getName());
+        assertEquals(describe(document), describe(streamed));
+    }
+
+    @Test(expected = TimaException.InitialStateException.class)
+    public void testIntialState() throws Exception {
+        String xml = "<timedautomata name='noinit'><state name='s0'><path to='s1' guard='t1'/></state><state name='s1'/></timedautomata>";
+        new TimedAutomataFactory<Void>(new SimpleNodeFactory<>()).streamXML(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testParallelDocument() throws Exception {
+        StringBuilder xml = new StringBuilder("<timedautomata name='root'><state name='s' initial='true'><path to='s' guard='g0'/></state>");
+        for (int i = 0; i < 200; i++) {
+            xml.append("<timedautomata name='a").append(i).append("'>");
+            for (int s = 0; s < 20; s++)
+                xml.append("<state name='s").append(s).append(s == 0 ? "' initial='true'>" : "'>")
+                        .append("<path to='s").append((s + 1) % 20).append("' guard='g").append((i + s) % 30).append("'/>")
+                        .append("<path to='s").append((s * 7) % 20).append("' guard='g").append(s).append("' attr='x'/>")
+                        .append("<action type='log' attr='").append(s).append("'/></state>");
+            xml.append("</timedautomata>");
+        }
+        xml.append("</timedautomata>");
+        byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        List<ITimedAutomata<Void>> sequential = new TimedAutomataFactory<Void>(new SimpleNodeFactory<>()).loadXML(new ByteArrayInputStream(bytes));
+        TimedAutomataFactory<Void> factory = new TimedAutomataFactory<Void>(new SimpleNodeFactory<>()).parallel(true);
+        List<ITimedAutomata<Void>> parallel = factory.loadXML(new ByteArrayInputStream(bytes));
+        assertEquals(describe(sequential), describe(parallel));
+        assertEquals(201, factory.getExecutor(() -> null, true, true).getCursors().size());
+    }
+}
@@ -0,0 +1,85 @@
+package fr.labri.tima;
+
+import fr.labri.tima.ITimedAutomata.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestTimingWheel {
+
+    @Test
+    public void testExpiry() {
+        TimingWheel<long[]> wheel = new TimingWheel<>(0);
+        Random rnd = new Random(1);
+        List<long[]> timers = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            long[] timer = {1 + (rnd.nextInt(3) == 0 ? rnd.nextInt(1 << 20) : rnd.nextInt(1000)), -1};
+            timers.add(timer);
+            wheel.schedule(timer, timer[0]);
+        }
+        long[] fired = {0};
+        while (wheel.size() > 0)
+            wheel.advance(wheel.now() + 1, timer -> {
+                timer[1] = wheel.now();
+                fired[0]++;
+            });
+        assertEquals(timers.size(), fired[0]);
+        for (long[] timer : timers)
+            assertEquals(timer[0], timer[1]);
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel<long[]> wheel = new TimingWheel<>(0);
+        Random rnd = new Random(2);
+        List<long[]> timers = new ArrayList<>();
+        List<TimingWheel.Timer<long[]>> handles = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            long[] timer = {2000 + (rnd.nextInt(3) == 0 ? rnd.nextInt(1 << 20) : rnd.nextInt(1000)), -1};
+            timers.add(timer);
+            handles.add(wheel.schedule(timer, timer[0]));
+        }
+        for (int i = 0; i < timers.size(); i += 5)
+            wheel.cancel(handles.get(i));
+        wheel.advance(1000, timer -> fail("Fired early"));
+        for (int i = 1; i < timers.size(); i += 5)
+            wheel.cancel(handles.get(i));
+        assertEquals(timers.size() * 3 / 5, wheel.size());
+        while (wheel.size() > 0)
+            wheel.advance(wheel.now() + 1, timer -> timer[1] = wheel.now());
+        for (int i = 0; i < timers.size(); i++)
+            assertEquals(i % 5 < 2 ? -1 : timers.get(i)[0], timers.get(i)[1]);
+    }
+
+    @Test
+    public void testParkedDelay() {
+        TimedAutomataFactory<Character> factory = new TimedAutomataFactory<>(null);
+        State<Character> s0 = factory.newState("s0", new ArrayList<>(), ITimedAutomata.INITIAL);
+        State<Character> wait = factory.newState("wait", new ArrayList<>(), 0);
+        State<Character> end = factory.newState("end", new ArrayList<>(), ITimedAutomata.TERMINATE);
+
+        TimedAutomata<Character> auto = new TimedAutomata<>();
+        auto.addTransition(s0, new Example.CharPredicate('a'), wait);
+        auto.addDefaultTransition(wait, 70000, end);
+        auto.setInitial(s0);
+
+        List<ITimedAutomata<Character>> autos = Arrays.asList(auto, auto);
+        BasicExecutor<Character> basic = new BasicExecutor<>(() -> 'a', autos).start();
+        TimingWheelExecutor<Character> wheel = new TimingWheelExecutor<>(() -> 'a', autos).start();
+
+        int ticks = 0;
+        boolean running = true;
+        while (running) {
+            running = basic.next();
+            assertEquals(running, wheel.next());
+            ticks++;
+        }
+        assertEquals(70001, ticks);
+        assertEquals(0, wheel.getParked());
+    }
+}
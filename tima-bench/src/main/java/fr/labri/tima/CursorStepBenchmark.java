@@ -0,0 +1,67 @@
+package fr.labri.tima;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.labri.tima.ITimedAutomata.Cursor;
+
+/**
+ * Throughput of a single {@link Cursor#next(ITimedAutomata.ContextProvider)}, interpreted ({@link TimedAutomata#start})
+ * versus compiled ({@link CompiledTimedAutomata#start}).
+ *
+ * <pre>
+ * mvn -f tima-bench/pom.xml package
+ * java -jar tima-bench/target/benchmarks.jar CursorStepBenchmark -prof gc
+ * </pre>
+ *
+ * Throughput mode gives ops/s, average time mode gives ns/step and the gc profiler reports B/op
+ * (<code>gc.alloc.rate.norm</code>).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CursorStepBenchmark {
+	@Param({"10", "1000", "100000"})
+	int states;
+
+	@Param({"1", "4", "16"})
+	int fanout;
+
+	@Param({"0", "50", "100"})
+	int timed;
+
+	@Param({"false", "true"})
+	boolean compiled;
+
+	SyntheticAutomata.EventRing _events;
+	Cursor<Integer> _cursor;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		ITimedAutomata<Integer> auto = SyntheticAutomata.generate(states, fanout, timed, 42);
+		if(compiled)
+			auto = auto.compile();
+		_events = new SyntheticAutomata.EventRing(SyntheticAutomata.events(4242));
+		_cursor = auto.start(_events);
+	}
+
+	@Benchmark
+	public boolean next() {
+		return _cursor.next(_events.advance());
+	}
+}
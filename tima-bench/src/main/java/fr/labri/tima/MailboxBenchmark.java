@@ -0,0 +1,154 @@
+package fr.labri.tima;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.Control;
+
+import fr.labri.tima.MessagingNodeFactory.IndexedMailbox;
+import fr.labri.tima.MessagingNodeFactory.InstrumentedMailbox;
+import fr.labri.tima.MessagingNodeFactory.Mailbox;
+import fr.labri.tima.MessagingNodeFactory.Message;
+import fr.labri.tima.MessagingNodeFactory.MessagePattern;
+
+/**
+ * Eight senders and one receiver sharing a mailbox: {@link MpscMailbox}, the locked {@link IndexedMailbox} and a
+ * mailbox built on a {@link ConcurrentLinkedDeque}, as the mailboxes used to be.
+ *
+ * <pre>
+ * mvn -f tima-bench/pom.xml package
+ * java -jar tima-bench/target/benchmarks.jar MailboxBenchmark
+ * </pre>
+ *
+ * The senders alternate two message types. The receiver either takes the oldest message or selects the type it did
+ * not take last. Senders wait when the mailbox holds more than BACKLOG messages, so the results compare the cost of
+ * the operations rather than the growth of the queue.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MailboxBenchmark {
+	static final int SENDERS = 8;
+	static final int BACKLOG = 1 << 12;
+
+	@Param({"deque", "indexed", "mpsc"})
+	String mailbox;
+
+	@Param({"false", "true"})
+	boolean selective;
+
+	Mailbox _mailbox;
+	MessagePattern[] _patterns;
+	volatile long _received;
+	long _receives;
+
+	@State(Scope.Thread)
+	public static class Sender {
+		final Message[] _messages = { new Message("a"), new Message("b") };
+		long _sent;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			_sent = 0;
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		switch(mailbox) {
+		case "mpsc":
+			_mailbox = new MpscMailbox();
+			break;
+		case "indexed":
+			_mailbox = new IndexedMailbox();
+			break;
+		default:
+			_mailbox = new DequeMailbox();
+		}
+		_patterns = new MessagePattern[] { ofType("a"), ofType("b"), new MessagePattern() {
+			@Override
+			public boolean match(Message other) {
+				return true;
+			}
+		} };
+		_received = 0;
+		_receives = 0;
+	}
+
+	static MessagePattern ofType(String type) {
+		return new MessagePattern(type) {
+			@Override
+			public boolean match(Message other) {
+				return other._type == type();
+			}
+		};
+	}
+
+	@Benchmark
+	@Group("mailbox")
+	@GroupThreads(SENDERS)
+	public boolean send(Sender sender, Control control) {
+		while(sender._sent - _received / SENDERS > BACKLOG / SENDERS && !control.stopMeasurement)
+			Blackhole.consumeCPU(16);
+		return _mailbox.receive(sender._messages[(int) (sender._sent ++ & 1)]);
+	}
+
+	@Benchmark
+	@Group("mailbox")
+	@GroupThreads(1)
+	public Message receive(Control control) {
+		MessagePattern pattern = selective ? _patterns[(int) (_receives & 1)] : _patterns[2];
+		Message m;
+		while((m = _mailbox.extractFrom(pattern, !selective)) == null && !control.stopMeasurement)
+			Blackhole.consumeCPU(16);
+		_received = ++ _receives;
+		return m;
+	}
+
+	/*
+		every removal is a CAS, as any thread may remove from the deque
+	 */
+	static final class DequeMailbox extends InstrumentedMailbox {
+		final ConcurrentLinkedDeque<Message> _queue = new ConcurrentLinkedDeque<>();
+
+		@Override
+		boolean enqueue(Message msg) {
+			_queue.addLast(msg);
+			return true;
+		}
+
+		@Override
+		Message extract(MessagePattern pattern, boolean first) {
+			for(Message m: _queue) {
+				if(pattern.match(m) && _queue.removeFirstOccurrence(m))
+					return m;
+				if(first)
+					return null;
+			}
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return _queue.size();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package fr.labri.tima;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import fr.labri.tima.ITimedAutomata.Action;
+import fr.labri.tima.ITimedAutomata.ContextProvider;
+import fr.labri.tima.ITimedAutomata.Predicate;
+import fr.labri.tima.ITimedAutomata.State;
+
+/**
+ * Generates never terminating automata over integer events.
+ *
+ * Every state has <code>fanout</code> guards, <code>timed</code> percents of the states use timed guards
+ * (with a default transition), the others use infinite guards only. Generation is seeded so that two runs
+ * benchmark the very same automaton.
+ */
+public class SyntheticAutomata {
+	public static final int EVENTS = 1 << 12;
+	static final int MAX_TIMEOUT = 32;
+
+	public static TimedAutomata<Integer> generate(int states, int fanout, int timed, long seed) {
+		Random rnd = new Random(seed);
+		TimedAutomata<Integer> auto = new TimedAutomata<>();
+		@SuppressWarnings("unchecked")
+		State<Integer>[] nodes = new State[states];
+		for(int i = 0; i < states; i ++)
+			nodes[i] = new SyntheticState("s" + i, i == 0 ? ITimedAutomata.INITIAL : 0);
+
+		int mask = Integer.highestOneBit(Math.max(fanout, 1) * 4) - 1;
+		for(int i = 0; i < states; i ++) {
+			boolean isTimed = rnd.nextInt(100) < timed;
+			int timeout = 2 + rnd.nextInt(MAX_TIMEOUT - 1);
+			for(int j = 0; j < fanout; j ++) {
+				Predicate<Integer> pred = new MaskPredicate(mask, rnd.nextInt(mask + 1));
+				State<Integer> to = nodes[rnd.nextInt(states)];
+				if(isTimed)
+					auto.addTransition(nodes[i], timeout + j, pred, to);
+				else
+					auto.addTransition(nodes[i], pred, to);
+			}
+			if(isTimed)
+				auto.addDefaultTransition(nodes[i], nodes[rnd.nextInt(states)]);
+		}
+		auto.setInitial(nodes[0]);
+		return auto;
+	}
+
+	public static Integer[] events(long seed) {
+		Random rnd = new Random(seed);
+		Integer[] events = new Integer[EVENTS];
+		for(int i = 0; i < EVENTS; i ++)
+			events[i] = rnd.nextInt();
+		return events;
+	}
+
+	static class MaskPredicate implements Predicate<Integer> {
+		final int _mask;
+		final int _value;
+
+		MaskPredicate(int mask, int value) {
+			_mask = mask;
+			_value = value;
+		}
+
+		@Override
+		public boolean isValid(Integer context) {
+			return (context & _mask) == _value;
+		}
+
+		@Override
+		public String getType() {
+			return "mask:" + _value;
+		}
+	}
+
+	static class SyntheticState implements State<Integer> {
+		final String _name;
+		final int _modifiers;
+
+		SyntheticState(String name, int modifiers) {
+			_name = name;
+			_modifiers = modifiers;
+		}
+
+		@Override
+		public String getName() {
+			return _name;
+		}
+
+		@Override
+		public List<Action<Integer>> getActions() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public int getModifier() {
+			return _modifiers;
+		}
+
+		@Override
+		public void preAction(Integer context) {
+		}
+
+		@Override
+		public void eachAction(Integer context) {
+		}
+
+		@Override
+		public void postAction(Integer context) {
+		}
+
+		@Override
+		public String toString() {
+			return _name;
+		}
+	}
+
+	/**
+	 * Replays a fixed ring of pre-boxed events, so that the provider itself does not allocate.
+	 */
+	public static class EventRing implements ContextProvider<Integer> {
+		final Integer[] _events;
+		int _pos;
+
+		public EventRing(Integer[] events) {
+			_events = events;
+		}
+
+		public EventRing advance() {
+			_pos = (_pos + 1) & (_events.length - 1);
+			return this;
+		}
+
+		@Override
+		public Integer getContext() {
+			return _events[_pos];
+		}
+	}
+}